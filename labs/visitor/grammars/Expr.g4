@@ -1,7 +1,8 @@
 grammar Expr;
 
 s : e ;
-e : e '*' e	# Mult
+e locals [int value = -1] // literal's value once parsed; see ExprIntEval
+  : e '*' e	# Mult
   | e '+' e	# Add
   | INT		# Number
   ;
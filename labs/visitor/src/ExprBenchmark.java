@@ -0,0 +1,73 @@
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+import vm.VM;
+
+/** Evaluate a big expression many times by walking the tree with
+ *  ExprEval, with ExprIntEval, and by running code from ExprCodeGen on
+ *  the VM; then a left-deep expression too deep for ExprEval.
+ */
+public class ExprBenchmark {
+	static final int NTERMS = 1000;
+	static final int N = 10_000;
+	static final int DEEP = 1_000_000;
+
+	public static void main(String[] args) {
+		String expr = generate(NTERMS);
+		ParseTree tree = parse(expr);
+
+		ExprEval eval = new ExprEval();
+		ExprIntEval intEval = new ExprIntEval();
+		long start = System.nanoTime();
+		int[] globals = new int[1];
+		VM vm = new VM(ExprCodeGen.compile(tree), globals, false, true);
+		long compileNanos = System.nanoTime() - start;
+
+		long evalNanos = Long.MAX_VALUE, intEvalNanos = Long.MAX_VALUE, vmNanos = Long.MAX_VALUE;
+		int v = 0, u = 0, w = 0;
+		for (int round = 1; round<=5; round++) { // best of 5 once warmed up
+			start = System.nanoTime();
+			for (int i = 0; i<N; i++) v = eval.visit(tree);
+			evalNanos = Math.min(evalNanos, System.nanoTime() - start);
+			start = System.nanoTime();
+			for (int i = 0; i<N; i++) u = intEval.eval(tree);
+			intEvalNanos = Math.min(intEvalNanos, System.nanoTime() - start);
+			start = System.nanoTime();
+			for (int i = 0; i<N; i++) {
+				vm.reset();
+				vm.exec();
+				w = globals[0];
+			}
+			vmNanos = Math.min(vmNanos, System.nanoTime() - start);
+		}
+		System.out.printf("%d terms x %d: ExprEval %d ms = %d, ExprIntEval %d ms = %d, compile %d us then VM %d ms = %d\n",
+						  NTERMS, N, evalNanos/1_000_000, v, intEvalNanos/1_000_000, u,
+						  compileNanos/1_000, vmNanos/1_000_000, w);
+
+		StringBuilder buf = new StringBuilder("1");
+		for (int i = 1; i<DEEP; i++) buf.append("+1");
+		ParseTree deep = parse(buf.toString());
+		System.out.println("1+1+...+1 with "+DEEP+" terms: ExprIntEval "+intEval.eval(deep));
+		try {
+			System.out.println("ExprEval "+eval.visit(deep));
+		}
+		catch (StackOverflowError soe) {
+			System.out.println("ExprEval overflows the Java stack");
+		}
+	}
+
+	static ParseTree parse(String expr) {
+		ExprParser parser = new ExprParser(new CommonTokenStream(new ExprLexer(new ANTLRInputStream(expr))));
+		return parser.s();
+	}
+
+	/** 1*2+3*4+... with n products */
+	static String generate(int n) {
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i<n; i++) {
+			if ( i>0 ) buf.append('+');
+			buf.append(i%10).append('*').append(i%7+1);
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,73 @@
+import org.antlr.v4.runtime.tree.ParseTree;
+import vm.Program;
+
+import java.util.Arrays;
+
+import static vm.Bytecode.GSTORE;
+import static vm.Bytecode.HALT;
+import static vm.Bytecode.IADD;
+import static vm.Bytecode.ICONST;
+import static vm.Bytecode.IMUL;
+
+/** Compile an expression tree to vm.Bytecode once so we can run it many
+ *  times without walking the tree again. The code leaves the value in
+ *  global 0:
+ *
+ *  	1+2*3  =>  ICONST 1, ICONST 2, ICONST 3, IMUL, IADD, GSTORE 0, HALT
+ *
+ *  To evaluate, run it on a VM with our own globals array:
+ *
+ *  	int[] globals = new int[1];
+ *  	VM vm = new VM(ExprCodeGen.compile(tree), globals, false, true);
+ *  	vm.exec();		// vm.reset() before running again
+ *  	int v = globals[0];
+ */
+public class ExprCodeGen extends ExprBaseVisitor<Void> {
+	protected int[] code = new int[100];
+	protected int ip = 0;
+
+	public static Program compile(ParseTree tree) {
+		ExprCodeGen gen = new ExprCodeGen();
+		gen.visit(tree);
+		gen.emit(GSTORE, 0);
+		gen.emit(HALT);
+		return new Program(Arrays.copyOf(gen.code, gen.ip), null, 0, 1).verify();
+	}
+
+	@Override
+	public Void visitMult(ExprParser.MultContext ctx) {
+		visit(ctx.e(0));
+		visit(ctx.e(1));
+		emit(IMUL);
+		return null;
+	}
+
+	@Override
+	public Void visitAdd(ExprParser.AddContext ctx) {
+		visit(ctx.e(0));
+		visit(ctx.e(1));
+		emit(IADD);
+		return null;
+	}
+
+	@Override
+	public Void visitNumber(ExprParser.NumberContext ctx) {
+		emit(ICONST, Integer.valueOf(ctx.INT().getText()));
+		return null;
+	}
+
+	protected void emit(int opcode) {
+		ensureCapacity(1);
+		code[ip++] = opcode;
+	}
+
+	protected void emit(int opcode, int operand) {
+		ensureCapacity(2);
+		code[ip++] = opcode;
+		code[ip++] = operand;
+	}
+
+	protected void ensureCapacity(int n) {
+		if ( ip+n > code.length ) code = Arrays.copyOf(code, Math.max(code.length*2, ip+n));
+	}
+}
@@ -0,0 +1,65 @@
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.Arrays;
+
+/** Evaluate an expression tree like ExprEval but with int values and
+ *  no recursion: an explicit stack of nodes to visit and a stack of
+ *  operand values. Nothing is boxed, each INT literal is parsed once and
+ *  kept in its context's value field, and the stacks are reused across
+ *  calls, so evaluating the same tree again allocates nothing. Left-deep
+ *  trees like 1+1+...+1 with a million terms evaluate fine where
+ *  ExprEval runs out of Java stack.
+ *
+ *  Not thread safe; use one evaluator per thread.
+ */
+public class ExprIntEval {
+	protected ExprParser.EContext[] nodes = new ExprParser.EContext[100];
+	protected boolean[] operandsDone = new boolean[100];
+	protected int nsp = -1;
+
+	protected int[] values = new int[100];
+	protected int vsp = -1;
+
+	/** Evaluate an s or e tree */
+	public int eval(ParseTree tree) {
+		ExprParser.EContext root = tree instanceof ExprParser.SContext ?
+			((ExprParser.SContext)tree).e() : (ExprParser.EContext)tree;
+		nsp = -1;
+		vsp = -1;
+		push(root, false);
+		while ( nsp>=0 ) {
+			ExprParser.EContext e = nodes[nsp];
+			boolean done = operandsDone[nsp];
+			nodes[nsp--] = null; // don't hang on to the tree
+			if ( e instanceof ExprParser.NumberContext ) {
+				if ( e.value<0 ) e.value = Integer.parseInt(((ExprParser.NumberContext)e).INT().getText());
+				pushValue(e.value);
+			}
+			else if ( !done ) { // visit left then right, then come back to combine
+				push(e, true);
+				push((ExprParser.EContext)e.getChild(2), false); // e op e
+				push((ExprParser.EContext)e.getChild(0), false);
+			}
+			else {
+				int b = values[vsp--];
+				int a = values[vsp];
+				values[vsp] = e instanceof ExprParser.MultContext ? a * b : a + b;
+			}
+		}
+		return values[0];
+	}
+
+	protected void push(ExprParser.EContext e, boolean done) {
+		if ( nsp+1 == nodes.length ) {
+			nodes = Arrays.copyOf(nodes, nodes.length*2);
+			operandsDone = Arrays.copyOf(operandsDone, operandsDone.length*2);
+		}
+		nodes[++nsp] = e;
+		operandsDone[nsp] = done;
+	}
+
+	protected void pushValue(int v) {
+		if ( vsp+1 == values.length ) values = Arrays.copyOf(values, values.length*2);
+		values[++vsp] = v;
+	}
+}
@@ -0,0 +1,136 @@
+package vm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import static vm.Bytecode.BR;
+import static vm.Bytecode.BRF;
+import static vm.Bytecode.DADD;
+import static vm.Bytecode.DCONST;
+import static vm.Bytecode.DMUL;
+import static vm.Bytecode.FADD;
+import static vm.Bytecode.FCONST;
+import static vm.Bytecode.FMUL;
+import static vm.Bytecode.GLOAD;
+import static vm.Bytecode.GSTORE;
+import static vm.Bytecode.HALT;
+import static vm.Bytecode.IADD;
+import static vm.Bytecode.ICONST;
+import static vm.Bytecode.ILT;
+
+/** JMH benchmarks for the float VM: Test.fhello's FCONST/FADD scaled up
+ *  into a loop, the same loop in doubles, plus the integer loop for
+ *  comparison.
+ *
+ *  	mvn package && java -jar target/benchmarks.jar -prof gc
+ *
+ *  or run main() which turns on the GC profiler.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FloatBenchmark {
+	public static final int N = 100_000;
+
+	static int[] floop = {
+	// .GLOBALS 2; I, X
+	// X = 3.14159
+		FCONST, Float.floatToIntBits(3.14159f),	// 0
+		GSTORE, 1,								// 2
+	// WHILE I<N:
+	// START (4):
+		GLOAD, 0,								// 4
+		ICONST, N,								// 6
+		ILT,									// 8
+		BRF, 30,								// 9
+	//     X = X * 0.5 + 2.5
+		GLOAD, 1,								// 11
+		FCONST, Float.floatToIntBits(0.5f),		// 13
+		FMUL,									// 15
+		FCONST, Float.floatToIntBits(2.5f),		// 16
+		FADD,									// 18
+		GSTORE, 1,								// 19
+	//     I = I + 1
+		GLOAD, 0,								// 21
+		ICONST, 1,								// 23
+		IADD,									// 25
+		GSTORE, 0,								// 26
+		BR, 4,									// 28
+	// DONE (30):
+		HALT									// 30
+	};
+
+	// same as floop but X is a double
+	static int[] dloop = {
+		DCONST, Test.hi(Double.doubleToLongBits(3.14159)), Test.lo(Double.doubleToLongBits(3.14159)), // 0
+		GSTORE, 1,								// 3
+		GLOAD, 0,								// 5
+		ICONST, N,								// 7
+		ILT,									// 9
+		BRF, 33,								// 10
+		GLOAD, 1,								// 12
+		DCONST, Test.hi(Double.doubleToLongBits(0.5)), Test.lo(Double.doubleToLongBits(0.5)), // 14
+		DMUL,									// 17
+		DCONST, Test.hi(Double.doubleToLongBits(2.5)), Test.lo(Double.doubleToLongBits(2.5)), // 18
+		DADD,									// 21
+		GSTORE, 1,								// 22
+		GLOAD, 0,								// 24
+		ICONST, 1,								// 26
+		IADD,									// 28
+		GSTORE, 0,								// 29
+		BR, 5,									// 31
+	// DONE (33):
+		HALT									// 33
+	};
+
+	static int[] loop = Test.loop.clone();
+	static {
+		loop[1] = N;
+	}
+
+	@Benchmark
+	public double floatLoop() {
+		VM vm = new VM(floop, 0, 2);
+		vm.exec();
+		return vm.fglobals[1];
+	}
+
+	@Benchmark
+	public double doubleLoop() {
+		VM vm = new VM(dloop, 0, 2);
+		vm.exec();
+		return vm.fglobals[1];
+	}
+
+	@Benchmark
+	public long intLoop() {
+		VM vm = new VM(loop, 0, 2);
+		vm.exec();
+		return vm.globals[1];
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+			.include(FloatBenchmark.class.getSimpleName())
+			.addProfiler(GCProfiler.class)
+			.build();
+		new Runner(opt).run();
+	}
+}
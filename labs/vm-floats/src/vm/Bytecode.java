@@ -36,7 +36,21 @@ public class Bytecode {
 	public static final short FCONST = 21;   // push constant float
 	public static final short FPRINT = 22;  // print stack top
 
-	public static final short HALT = 23;
+	public static final short DADD = 23;     // double add
+	public static final short DMUL = 24;
+	public static final short DCONST = 25;   // push constant double; operands are high, low word
+	public static final short DPRINT = 26;
+
+	public static final short LADD = 27;     // long add
+	public static final short LMUL = 28;
+	public static final short LCONST = 29;   // push constant long; operands are high, low word
+	public static final short LPRINT = 30;
+
+	public static final short I2F = 31;      // int to float
+	public static final short F2I = 32;      // float to int
+	public static final short I2D = 33;      // int to double
+
+	public static final short HALT = 34;
 
 	public static Instruction[] instructions = new Instruction[] {
 		null, // <INVALID>
@@ -62,6 +76,17 @@ public class Bytecode {
 		new Instruction("feq"),
 		new Instruction("fconst", 1),
 		new Instruction("fprint"),
+		new Instruction("dadd"),
+		new Instruction("dmul"),
+		new Instruction("dconst", 2),
+		new Instruction("dprint"),
+		new Instruction("ladd"),
+		new Instruction("lmul"),
+		new Instruction("lconst", 2),
+		new Instruction("lprint"),
+		new Instruction("i2f"),
+		new Instruction("f2i"),
+		new Instruction("i2d"),
 		new Instruction("halt")
 	};
 }
@@ -2,15 +2,25 @@ package vm;
 
 import static vm.Bytecode.BR;
 import static vm.Bytecode.BRF;
+import static vm.Bytecode.DADD;
+import static vm.Bytecode.DCONST;
+import static vm.Bytecode.DMUL;
+import static vm.Bytecode.DPRINT;
+import static vm.Bytecode.F2I;
 import static vm.Bytecode.FADD;
 import static vm.Bytecode.FCONST;
 import static vm.Bytecode.FPRINT;
 import static vm.Bytecode.GLOAD;
 import static vm.Bytecode.GSTORE;
 import static vm.Bytecode.HALT;
+import static vm.Bytecode.I2D;
+import static vm.Bytecode.I2F;
 import static vm.Bytecode.IADD;
 import static vm.Bytecode.ICONST;
 import static vm.Bytecode.ILT;
+import static vm.Bytecode.LCONST;
+import static vm.Bytecode.LMUL;
+import static vm.Bytecode.LPRINT;
 import static vm.Bytecode.PRINT;
 
 public class Test {
@@ -31,6 +41,33 @@ public class Test {
 		HALT
 	};
 
+	// print 3.141592653589793 * 2.0 + 1
+	static int[] dhello = {
+		DCONST, hi(Double.doubleToLongBits(Math.PI)), lo(Double.doubleToLongBits(Math.PI)),
+		DCONST, hi(Double.doubleToLongBits(2.0)), lo(Double.doubleToLongBits(2.0)),
+		DMUL,
+		ICONST, 1,
+		I2D,
+		DADD,
+		DPRINT,
+		HALT
+	};
+
+	// print 4000000000 * 3, then (int)(7 + 0.75f)
+	static int[] lhello = {
+		LCONST, hi(4000000000L), lo(4000000000L),
+		LCONST, hi(3), lo(3),
+		LMUL,
+		LPRINT,
+		ICONST, 7,
+		I2F,
+		FCONST, Float.floatToIntBits(0.75f),
+		FADD,
+		F2I,
+		PRINT,
+		HALT
+	};
+
 	static int[] loop = {
 	// .GLOBALS 2; N, I
 	// N = 10						ADDRESS
@@ -56,11 +93,23 @@ public class Test {
 			HALT					// 24
 	};
 
+	/** Split 64-bit constants into the two operand words of DCONST/LCONST */
+	static int hi(long v) { return (int)(v >>> 32); }
+	static int lo(long v) { return (int)v; }
+
 	public static void main(String[] args) {
 		VM vm = new VM(fhello, 0, 0);
 		vm.trace = true;
 		vm.exec();
 
+		vm = new VM(dhello, 0, 0);
+		vm.trace = true;
+		vm.exec();
+
+		vm = new VM(lhello, 0, 0);
+		vm.trace = true;
+		vm.exec();
+
 //		vm = new VM(hello, 0, 0);
 //		vm.trace = true;
 //		vm.exec();
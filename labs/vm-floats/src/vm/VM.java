@@ -6,6 +6,11 @@ import java.util.List;
 import static vm.Bytecode.BR;
 import static vm.Bytecode.BRF;
 import static vm.Bytecode.BRT;
+import static vm.Bytecode.DADD;
+import static vm.Bytecode.DCONST;
+import static vm.Bytecode.DMUL;
+import static vm.Bytecode.DPRINT;
+import static vm.Bytecode.F2I;
 import static vm.Bytecode.FADD;
 import static vm.Bytecode.FCONST;
 import static vm.Bytecode.FEQ;
@@ -16,18 +21,41 @@ import static vm.Bytecode.FSUB;
 import static vm.Bytecode.GLOAD;
 import static vm.Bytecode.GSTORE;
 import static vm.Bytecode.HALT;
+import static vm.Bytecode.I2D;
+import static vm.Bytecode.I2F;
 import static vm.Bytecode.IADD;
 import static vm.Bytecode.ICONST;
 import static vm.Bytecode.IEQ;
 import static vm.Bytecode.ILT;
 import static vm.Bytecode.IMUL;
 import static vm.Bytecode.ISUB;
+import static vm.Bytecode.LADD;
+import static vm.Bytecode.LCONST;
+import static vm.Bytecode.LMUL;
 import static vm.Bytecode.LOAD;
+import static vm.Bytecode.LPRINT;
 import static vm.Bytecode.POP;
 import static vm.Bytecode.PRINT;
 import static vm.Bytecode.STORE;
 
-/** A simple stack-based interpreter */
+/** A simple stack-based interpreter.
+ *
+ *  Operand stack, globals, and locals are split into two parallel lanes
+ *  that share one stack pointer: a long lane for int and long values and
+ *  a double lane for float and double values. Each instruction reads and
+ *  writes the lane for its type at full width so there's no
+ *  Float.intBitsToFloat/floatToIntBits round trip per op. Float results
+ *  are rounded with a (float) cast so FADD etc... still compute in 32 bits.
+ *
+ *  LOAD, STORE, GLOAD, GSTORE, and POP don't know the type of the value
+ *  so they move both lanes.
+ *
+ *  The lane a value isn't in is always zero so the trace can tell which
+ *  lane is live. Instructions that put a value into a slot whose other
+ *  lane might not be zero clear it: constants, conversions, and float
+ *  compares. Same-type arithmetic writes over its first operand's slot
+ *  whose other lane is already zero.
+ */
 public class VM {
 	public static final int DEFAULT_STACK_SIZE = 1000;
 	public static final int FALSE = 0;
@@ -42,16 +70,20 @@ public class VM {
 
 	// memory
 	int[] code;         // word-addressable code memory but still bytecodes.
-	int[] globals;      // global variable space
-	int[] stack;		// Operand stack, grows upwards
+	long[] globals;     // global variable space, int/long lane
+	double[] fglobals;  // global variable space, float/double lane
+	long[] stack;		// Operand stack, grows upwards; int/long lane
+	double[] fstack;	// Operand stack float/double lane
 
 	public boolean trace = false;
 
 	public VM(int[] code, int startip, int nglobals) {
 		this.code = code;
 		this.startip = startip;
-		globals = new int[nglobals];
-		stack = new int[DEFAULT_STACK_SIZE];
+		globals = new long[nglobals];
+		fglobals = new double[nglobals];
+		stack = new long[DEFAULT_STACK_SIZE];
+		fstack = new double[DEFAULT_STACK_SIZE];
 	}
 
 	public void exec() {
@@ -63,64 +95,122 @@ public class VM {
 	protected void cpu() {
 		int opcode = code[ip];
 		int a,b,addr,offset;
-		float x,y;
+		long la,lb;
+		double x,y;
 		while (opcode!= HALT && ip < code.length) {
-			if ( trace ) System.err.printf("%-35s", disInstr());
+			if ( trace ) System.err.printf("%-34s ", disInstr());
 			ip++; //jump to next instruction or to operand
 			switch (opcode) {
 				case IADD:
-					b = stack[sp--];   			// 2nd opnd at top of stack
-					a = stack[sp--]; 			// 1st opnd 1 below top
+					b = (int)stack[sp--];   	// 2nd opnd at top of stack
+					a = (int)stack[sp--]; 		// 1st opnd 1 below top
 					stack[++sp] = a + b;      	// push result
 					break;
 				case ISUB:
-					b = stack[sp--];
-					a = stack[sp--];
+					b = (int)stack[sp--];
+					a = (int)stack[sp--];
 					stack[++sp] = a - b;
 					break;
 				case IMUL:
-					b = stack[sp--];
-					a = stack[sp--];
+					b = (int)stack[sp--];
+					a = (int)stack[sp--];
 					stack[++sp] = a * b;
 					break;
 				case ILT :
-					b = stack[sp--];
-					a = stack[sp--];
+					b = (int)stack[sp--];
+					a = (int)stack[sp--];
 					stack[++sp] = (a < b) ? TRUE : FALSE;
 					break;
 				case IEQ :
-					b = stack[sp--];
-					a = stack[sp--];
+					b = (int)stack[sp--];
+					a = (int)stack[sp--];
 					stack[++sp] = (a == b) ? TRUE : FALSE;
 					break;
 
 				case FADD:
-					y = Float.intBitsToFloat(stack[sp--]);
-					x = Float.intBitsToFloat(stack[sp--]);
-					stack[++sp] = Float.floatToIntBits(x + y);
+					y = fstack[sp--];
+					x = fstack[sp--];
+					fstack[++sp] = (float)(x + y);
 					break;
 				case FSUB:
-					y = Float.intBitsToFloat(stack[sp--]);
-					x = Float.intBitsToFloat(stack[sp--]);
-					stack[++sp] = Float.floatToIntBits(x -y);
+					y = fstack[sp--];
+					x = fstack[sp--];
+					fstack[++sp] = (float)(x - y);
 					break;
 				case FMUL:
-					y = Float.intBitsToFloat(stack[sp--]);
-					x = Float.intBitsToFloat(stack[sp--]);
-					stack[++sp] = Float.floatToIntBits(x * y);
+					y = fstack[sp--];
+					x = fstack[sp--];
+					fstack[++sp] = (float)(x * y);
 					break;
 				case FLT :
-					y = Float.intBitsToFloat(stack[sp--]);
-					x = Float.intBitsToFloat(stack[sp--]);
+					y = fstack[sp--];
+					x = fstack[sp--];
 					stack[++sp] = (x < y) ? TRUE : FALSE;
+					fstack[sp] = 0;
 					break;
 				case FEQ :
-					y = Float.intBitsToFloat(stack[sp--]);
-					x = Float.intBitsToFloat(stack[sp--]);
+					y = fstack[sp--];
+					x = fstack[sp--];
 					stack[++sp] = (x == y) ? TRUE : FALSE;
+					fstack[sp] = 0;
+					break;
+				case FCONST:
+					fstack[++sp] = Float.intBitsToFloat(code[ip++]);
+					stack[sp] = 0;
 					break;
 				case FPRINT :
-					System.out.println(Float.intBitsToFloat(stack[sp--]));
+					System.out.println((float)fstack[sp--]);
+					break;
+
+				case DADD:
+					y = fstack[sp--];
+					x = fstack[sp--];
+					fstack[++sp] = x + y;
+					break;
+				case DMUL:
+					y = fstack[sp--];
+					x = fstack[sp--];
+					fstack[++sp] = x * y;
+					break;
+				case DCONST:
+					fstack[++sp] = Double.longBitsToDouble(operand64());
+					stack[sp] = 0;
+					ip += 2;
+					break;
+				case DPRINT :
+					System.out.println(fstack[sp--]);
+					break;
+
+				case LADD:
+					lb = stack[sp--];
+					la = stack[sp--];
+					stack[++sp] = la + lb;
+					break;
+				case LMUL:
+					lb = stack[sp--];
+					la = stack[sp--];
+					stack[++sp] = la * lb;
+					break;
+				case LCONST:
+					stack[++sp] = operand64();
+					fstack[sp] = 0;
+					ip += 2;
+					break;
+				case LPRINT :
+					System.out.println(stack[sp--]);
+					break;
+
+				case I2F:
+					fstack[sp] = (float)(int)stack[sp];
+					stack[sp] = 0;
+					break;
+				case F2I:
+					stack[sp] = (int)(float)fstack[sp];
+					fstack[sp] = 0;
+					break;
+				case I2D:
+					fstack[sp] = (int)stack[sp];
+					stack[sp] = 0;
 					break;
 
 				case BR :
@@ -134,28 +224,34 @@ public class VM {
 					addr = code[ip++];
 					if ( stack[sp--]==FALSE ) ip = addr;
 					break;
-				case FCONST: // same as ICONST!!
 				case ICONST:
 					stack[++sp] = code[ip++]; // push operand
+					fstack[sp] = 0;
 					break;
 				case LOAD : // load local or arg; 1st local is fp+1, args are fp-3, fp-4, fp-5, ...
 					offset = code[ip++];
-					stack[++sp] = stack[fp+offset];
+					++sp;
+					stack[sp] = stack[fp+offset];
+					fstack[sp] = fstack[fp+offset];
 					break;
 				case GLOAD :// load from global memory
 					addr = code[ip++];
-					stack[++sp] = globals[addr];
+					++sp;
+					stack[sp] = globals[addr];
+					fstack[sp] = fglobals[addr];
 					break;
 				case STORE :
 					offset = code[ip++];
-					stack[fp+offset] = stack[sp--];
+					stack[fp+offset] = stack[sp];
+					fstack[fp+offset] = fstack[sp--];
 					break;
 				case GSTORE :
 					addr = code[ip++];
-					globals[addr] = stack[sp--];
+					globals[addr] = stack[sp];
+					fglobals[addr] = fstack[sp--];
 					break;
 				case PRINT :
-					System.out.println(stack[sp--]);
+					System.out.println((int)stack[sp--]);
 					break;
 				case POP:
 					--sp;
@@ -166,23 +262,35 @@ public class VM {
 			if ( trace ) System.err.println(stackString());
 			opcode = code[ip];
 		}
-		if ( trace ) System.err.printf("%-35s", disInstr());
+		if ( trace ) System.err.printf("%-34s ", disInstr());
 		if ( trace ) System.err.println(stackString());
 		if ( trace ) dumpDataMemory();
 	}
 
+	/** The 64-bit operand at ip: high word then low word */
+	protected long operand64() {
+		return ((long)code[ip] << 32) | (code[ip+1] & 0xFFFFFFFFL);
+	}
+
 	protected String stackString() {
 		StringBuilder buf = new StringBuilder();
 		buf.append("stack=[");
 		for (int i = 0; i <= sp; i++) {
-			int o = stack[i];
 			buf.append(" ");
-			buf.append(o);
+			buf.append(slotString(stack[i], fstack[i]));
 		}
 		buf.append(" ]");
 		return buf.toString();
 	}
 
+	/** A slot holds a value in one lane and zero in the other; show the
+	 *  live one. A float or double 0.0 shows as 0.
+	 */
+	protected static String slotString(long i, double f) {
+		if ( i==0 && f!=0.0 ) return String.valueOf(f);
+		return String.valueOf(i);
+	}
+
 	protected String disInstr() {
 		int opcode = code[ip];
 		String opName = Bytecode.instructions[opcode].name;
@@ -206,8 +314,8 @@ public class VM {
 	protected void dumpDataMemory() {
 		System.err.println("Data memory:");
 		int addr = 0;
-		for (int o : globals) {
-			System.err.printf("%04d: %s\n", addr, o);
+		for (int i = 0; i<globals.length; i++) {
+			System.err.printf("%04d: %s\n", addr, slotString(globals[i], fglobals[i]));
 			addr++;
 		}
 		System.err.println();
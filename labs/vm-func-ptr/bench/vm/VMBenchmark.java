@@ -0,0 +1,123 @@
+package vm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import static vm.Bytecode.POP;
+
+/** JMH benchmarks for the interpreters; the regression gate for VM work.
+ *  Programs are the test programs with bigger constants and PRINT
+ *  replaced by POP. VMs are built once per trial so that the GC profiler
+ *  reports allocation by execution, not by VM construction.
+ *
+ *  	mvn package && java -jar target/benchmarks.jar -prof gc
+ *
+ *  or run main() which turns on the GC profiler.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VMBenchmark {
+	public static final int FIB_N = 20;
+	public static final int LOOP_N = 100_000;
+	public static final int FUNCPTR_N = 10_000;
+	public static final int NAIVE_N = 100_000;
+
+	VM fibSwitch, fibThreaded, fibFused, fibJIT;
+	RegVM fibRegister;
+	VM loopSwitch, loopThreaded, loopFused;
+	RegVM loopRegister;
+	VM funcPtrSwitch, funcPtrThreaded;
+	VM naiveSwitch, naiveOptimized;
+
+	@Setup
+	public void setup() {
+		int[] fib = Fibonacci.fibonacci.clone();
+		fib[Fibonacci.MAIN_ADDRESS+1] = FIB_N;  // ICONST n
+		fib[Fibonacci.MAIN_ADDRESS+4] = POP;    // was PRINT
+		Program fibProgram = new Program(fib, Fibonacci.fibonacci_metadata, Fibonacci.MAIN_ADDRESS, 0);
+		fibSwitch = new VM(fibProgram, false);
+		fibThreaded = new VM(fibProgram, true);
+		Peephole fused = new Peephole(fib, Fibonacci.fibonacci_metadata, Fibonacci.MAIN_ADDRESS);
+		fibFused = new VM(new Program(fused.code, fused.metadata, fused.startip, 0), false);
+		fibJIT = new VM(fibProgram, false);
+		fibJIT.enableJIT(JIT.DEFAULT_THRESHOLD);
+		fibRegister = new RegVM(new StackToRegister(fib, Fibonacci.fibonacci_metadata, Fibonacci.MAIN_ADDRESS), 0);
+
+		int[] loop = Test.loop.clone();
+		loop[1] = LOOP_N;
+		Program loopProgram = new Program(loop, null, 0, 2);
+		loopSwitch = new VM(loopProgram, false);
+		loopThreaded = new VM(loopProgram, true);
+		fused = new Peephole(loop, null, 0);
+		loopFused = new VM(new Program(fused.code, null, fused.startip, 2), false);
+		loopRegister = new RegVM(new StackToRegister(loop, null, 0), 2);
+
+		int[] funcptr = TestFuncPtr.loop.clone();
+		funcptr[TestFuncPtr.LOOP_N_ADDRESS] = FUNCPTR_N;
+		Program funcPtrProgram = new Program(funcptr, TestFuncPtr.loop_metadata, 0, 1);
+		funcPtrSwitch = new VM(funcPtrProgram, false);
+		funcPtrThreaded = new VM(funcPtrProgram, true);
+
+		int[] naive = TestOptimizer.naive.clone();
+		naive[TestOptimizer.N_ADDRESS] = NAIVE_N;
+		naive[TestOptimizer.PRINT_ADDRESS] = POP;
+		naiveSwitch = new VM(new Program(naive, null, 0, 2), false);
+		Optimizer opt = new Optimizer(naive, null, 0);
+		naiveOptimized = new VM(new Program(opt.code, null, opt.startip, 2), false);
+	}
+
+	static int run(VM vm) {
+		vm.reset();
+		vm.exec();
+		return vm.sp;
+	}
+
+	static int run(RegVM vm) {
+		vm.exec();
+		return vm.regs[vm.rp];
+	}
+
+	@Benchmark public int fibSwitch() { return run(fibSwitch); }
+	@Benchmark public int fibThreaded() { return run(fibThreaded); }
+	@Benchmark public int fibFused() { return run(fibFused); }
+	@Benchmark public int fibJIT() { return run(fibJIT); }
+	@Benchmark public int fibRegister() { return run(fibRegister); }
+
+	@Benchmark public int loopSwitch() { return run(loopSwitch); }
+	@Benchmark public int loopThreaded() { return run(loopThreaded); }
+	@Benchmark public int loopFused() { return run(loopFused); }
+	@Benchmark public int loopRegister() { return run(loopRegister); }
+
+	@Benchmark public int funcPtrSwitch() { return run(funcPtrSwitch); }
+	@Benchmark public int funcPtrThreaded() { return run(funcPtrThreaded); }
+
+	@Benchmark public int naiveSwitch() { return run(naiveSwitch); }
+	@Benchmark public int naiveOptimized() { return run(naiveOptimized); }
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+			.include(VMBenchmark.class.getSimpleName())
+			.addProfiler(GCProfiler.class)
+			.build();
+		new Runner(opt).run();
+	}
+}
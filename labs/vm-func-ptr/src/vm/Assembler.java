@@ -0,0 +1,298 @@
+package vm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Translate assembly text to code memory and function metadata in one
+ *  pass. For example,
+ *
+ *  	.globals 1
+ *  	.def fib: args=1 locals=0
+ *  		load 0
+ *  		iconst 2
+ *  		ilt
+ *  		brf cont			; forward reference
+ *  		load 0
+ *  		ret
+ *  	cont:
+ *  		...
+ *  	.def main: args=0 locals=0
+ *  		iconst 10
+ *  		call fib
+ *  		print
+ *  		halt
+ *
+ *  Instruction names are those in Bytecode.instructions. Branches take a
+ *  label and CALL, TAILCALL, and FUNCIDX take a function name; both can
+ *  be used before they're defined. We emit a placeholder and remember
+ *  where, then back-patch once we've seen everything. A function's index
+ *  is the order of its .def.
+ *  Execution starts at function main if there is one, otherwise at
+ *  label main, otherwise at 0. Operands may be separated by commas and
+ *  ';' starts a comment.
+ *
+ *  Labels are global. We scan each line by hand without regular
+ *  expressions and parse numbers in place so a big generated program
+ *  assembles about as fast as we can read it.
+ */
+public class Assembler {
+	public int[] code;
+	public FuncMetaData[] metadata;
+	public int startip;
+	public int nglobals = 0;
+
+	protected static final Map<String, Integer> opcodes = new HashMap<String, Integer>();
+	static {
+		for (int op = 1; op<Bytecode.instructions.length; op++) {
+			opcodes.put(Bytecode.instructions[op].name, op);
+		}
+	}
+
+	protected int[] out = new int[1024];
+	protected int n = 0;
+
+	protected final Map<String, Integer> labels = new HashMap<String, Integer>(); // name -> address
+	protected final Map<String, Integer> funcIndexes = new HashMap<String, Integer>();
+	protected final List<FuncMetaData> funcs = new ArrayList<FuncMetaData>();
+
+	// forward references to labels and functions: name, address of operand, and line
+	protected final List<String> refs = new ArrayList<String>();
+	protected boolean[] refIsFunc = new boolean[64];
+	protected int[] refAddrs = new int[64];
+	protected int[] refLines = new int[64];
+
+	// current line being scanned
+	protected String line;
+	protected int p;
+	protected int lineno = 0;
+
+	public Assembler(Reader in) throws IOException {
+		BufferedReader r = in instanceof BufferedReader ? (BufferedReader)in : new BufferedReader(in, 1<<16);
+		while ( (line = r.readLine())!=null ) {
+			lineno++;
+			p = 0;
+			line();
+		}
+		finish();
+	}
+
+	public Assembler(String text) throws IOException { this(new StringReader(text)); }
+
+	public static Assembler assemble(Path path) throws IOException {
+		try ( Reader r = Files.newBufferedReader(path, StandardCharsets.UTF_8) ) {
+			return new Assembler(r);
+		}
+	}
+
+	public Program program() {
+		return new Program(code, metadata, startip, nglobals);
+	}
+
+	protected void line() {
+		skipSpace();
+		if ( atEnd() ) return;
+		if ( line.charAt(p)=='.' ) {
+			directive();
+			return;
+		}
+		String id = identifier();
+		skipSpace();
+		if ( p<line.length() && line.charAt(p)==':' ) {	// label
+			p++;
+			if ( labels.put(id, n)!=null ) throw error("label "+id+" redefined");
+			skipSpace();
+			if ( atEnd() ) return;
+			id = identifier();
+		}
+		instruction(id);
+	}
+
+	protected void instruction(String name) {
+		Integer op = opcodes.get(name);
+		if ( op==null ) throw error("unknown instruction "+name);
+		int opcode = op;
+		emit(opcode);
+		int nargs = Bytecode.instructions[opcode].n;
+		for (int i = 1; i<=nargs; i++) {
+			skipSpace();
+			if ( i>1 && p<line.length() && line.charAt(p)==',' ) { p++; skipSpace(); }
+			if ( atEnd() ) throw error(name+" needs "+nargs+" operand(s)");
+			boolean last = i==nargs;
+			switch ( opcode ) {
+				case Bytecode.BR :
+				case Bytecode.BRT :
+				case Bytecode.BRF :
+					labelOperand();
+					break;
+				case Bytecode.LOAD_ICONST_ILT_BRF :
+				case Bytecode.GLOAD_GLOAD_ILT_BRF :
+					if ( last ) labelOperand();
+					else emit(number());
+					break;
+				case Bytecode.CALL :
+				case Bytecode.TAILCALL :
+				case Bytecode.FUNCIDX :
+					funcOperand();
+					break;
+				case Bytecode.LOAD_ICONST_ISUB_CALL :
+					if ( last ) funcOperand();
+					else emit(number());
+					break;
+				default :
+					emit(number());
+			}
+		}
+		skipSpace();
+		if ( !atEnd() ) throw error("unexpected '"+line.substring(p).trim()+"' after "+name);
+	}
+
+	/** .globals n or .def name: args=n locals=m */
+	protected void directive() {
+		p++;
+		String d = identifier();
+		skipSpace();
+		if ( d.equals("globals") ) {
+			nglobals = number();
+		}
+		else if ( d.equals("def") ) {
+			String name = identifier();
+			skipSpace();
+			if ( p<line.length() && line.charAt(p)==':' ) p++;
+			int nargs = 0, nlocals = 0;
+			skipSpace();
+			while ( !atEnd() ) {
+				String key = identifier();
+				skipSpace();
+				if ( p>=line.length() || line.charAt(p)!='=' ) throw error("expecting = after "+key);
+				p++;
+				skipSpace();
+				int v = number();
+				if ( key.equals("args") ) nargs = v;
+				else if ( key.equals("locals") ) nlocals = v;
+				else throw error("unknown attribute "+key);
+				skipSpace();
+				if ( p<line.length() && line.charAt(p)==',' ) { p++; skipSpace(); }
+			}
+			if ( funcIndexes.put(name, funcs.size())!=null ) throw error("function "+name+" redefined");
+			funcs.add(new FuncMetaData(name, nargs, nlocals, n));
+		}
+		else {
+			throw error("unknown directive ."+d);
+		}
+		skipSpace();
+		if ( !atEnd() ) throw error("unexpected '"+line.substring(p).trim()+"'");
+	}
+
+	protected void labelOperand() {
+		if ( isNumberStart() ) {
+			emit(number());
+			return;
+		}
+		reference(labels, identifier(), false);
+	}
+
+	protected void funcOperand() {
+		if ( isNumberStart() ) emit(number());
+		else reference(funcIndexes, identifier(), true);
+	}
+
+	/** Emit name's value if we know it yet, otherwise a placeholder to back-patch */
+	protected void reference(Map<String, Integer> defined, String name, boolean isFunc) {
+		Integer v = defined.get(name);
+		if ( v!=null ) {
+			emit(v);
+			return;
+		}
+		int i = refs.size();
+		if ( i==refAddrs.length ) {
+			refIsFunc = Arrays.copyOf(refIsFunc, i*2);
+			refAddrs = Arrays.copyOf(refAddrs, i*2);
+			refLines = Arrays.copyOf(refLines, i*2);
+		}
+		refs.add(name);
+		refIsFunc[i] = isFunc;
+		refAddrs[i] = n;
+		refLines[i] = lineno;
+		emit(-1);
+	}
+
+	protected void finish() {
+		for (int i = 0; i<refs.size(); i++) {
+			Integer v = (refIsFunc[i] ? funcIndexes : labels).get(refs.get(i));
+			if ( v==null ) {
+				throw new Error("line "+refLines[i]+": undefined "+(refIsFunc[i] ? "function " : "label ")+refs.get(i));
+			}
+			out[refAddrs[i]] = v;
+		}
+		code = Arrays.copyOf(out, n);
+		metadata = funcs.isEmpty() ? null : funcs.toArray(new FuncMetaData[funcs.size()]);
+		Integer main = funcIndexes.get("main");
+		if ( main!=null ) startip = funcs.get(main).address;
+		else startip = labels.getOrDefault("main", 0);
+	}
+
+	protected void emit(int v) {
+		if ( n==out.length ) out = Arrays.copyOf(out, n*2);
+		out[n++] = v;
+	}
+
+	protected String identifier() {
+		int start = p;
+		while ( p<line.length() ) {
+			char c = line.charAt(p);
+			if ( !Character.isLetterOrDigit(c) && c!='_' && c!='$' ) break;
+			p++;
+		}
+		if ( p==start ) throw error("expecting a name");
+		return line.substring(start, p);
+	}
+
+	protected int number() {
+		boolean negative = false;
+		if ( p<line.length() && line.charAt(p)=='-' ) {
+			negative = true;
+			p++;
+		}
+		int start = p;
+		long v = 0;
+		while ( p<line.length() ) {
+			char c = line.charAt(p);
+			if ( c<'0' || c>'9' ) break;
+			v = v*10 + (c - '0');
+			if ( v>1L+Integer.MAX_VALUE ) throw error("number too big");
+			p++;
+		}
+		if ( p==start ) throw error("expecting a number");
+		v = negative ? -v : v;
+		if ( v>Integer.MAX_VALUE ) throw error("number too big");
+		return (int)v;
+	}
+
+	protected boolean isNumberStart() {
+		char c = line.charAt(p);
+		return c=='-' || (c>='0' && c<='9');
+	}
+
+	protected void skipSpace() {
+		while ( p<line.length() && Character.isWhitespace(line.charAt(p)) ) p++;
+	}
+
+	/** At end of line or a comment? */
+	protected boolean atEnd() {
+		return p>=line.length() || line.charAt(p)==';';
+	}
+
+	protected Error error(String msg) {
+		return new Error("line "+lineno+": "+msg);
+	}
+}
@@ -0,0 +1,88 @@
+package vm;
+
+import static vm.Bytecode.POP;
+
+/** Compare the switch-based cpu() loop against pre-decoded threaded code
+ *  and the JIT. Programs are copies of the test programs with bigger constants and
+ *  PRINT replaced by POP so that output doesn't swamp the timing.
+ */
+public class Bench {
+	public static final int WARMUP = 5;
+	public static final int RUNS = 10;
+
+	public static void main(String[] args) {
+		int n = args.length>0 ? Integer.parseInt(args[0]) : 30;
+		int[] fib = Fibonacci.fibonacci.clone();
+		fib[Fibonacci.MAIN_ADDRESS+1] = n;    // ICONST n
+		fib[Fibonacci.MAIN_ADDRESS+4] = POP;  // was PRINT
+		int[] loop = Test.loop.clone();
+		loop[1] = 10_000_000;                 // N = ...
+
+		System.out.println("fib("+n+")");
+		time("  switch  ", fib, Fibonacci.MAIN_ADDRESS, 0, Fibonacci.fibonacci_metadata, false);
+		time("  threaded", fib, Fibonacci.MAIN_ADDRESS, 0, Fibonacci.fibonacci_metadata, true);
+		time("  jit     ", fib, Fibonacci.MAIN_ADDRESS, 0, Fibonacci.fibonacci_metadata, false, JIT.DEFAULT_THRESHOLD);
+		timeRegisters("  register", new StackToRegister(fib, Fibonacci.fibonacci_metadata, Fibonacci.MAIN_ADDRESS), 0);
+		Peephole fused = new Peephole(fib, Fibonacci.fibonacci_metadata, Fibonacci.MAIN_ADDRESS);
+		time("  fused   ", fused.code, fused.startip, 0, fused.metadata, false);
+		time("  fused threaded", fused.code, fused.startip, 0, fused.metadata, true);
+		int[] funcptr = TestFuncPtr.loop.clone();
+		funcptr[TestFuncPtr.LOOP_N_ADDRESS] = 1_000_000;
+		System.out.println("funcptr loop "+funcptr[TestFuncPtr.LOOP_N_ADDRESS]+" times");
+		time("  switch  ", funcptr, 0, 1, TestFuncPtr.loop_metadata, false);
+		time("  threaded", funcptr, 0, 1, TestFuncPtr.loop_metadata, true);
+
+		System.out.println("loop "+loop[1]+" times");
+		time("  switch  ", loop, 0, 2, null, false);
+		time("  threaded", loop, 0, 2, null, true);
+		timeRegisters("  register", new StackToRegister(loop, null, 0), 2);
+		fused = new Peephole(loop, null, 0);
+		time("  fused   ", fused.code, fused.startip, 2, null, false);
+		time("  fused threaded", fused.code, fused.startip, 2, null, true);
+	}
+
+	static void time(String label, int[] code, int startip, int nglobals,
+					 FuncMetaData[] metadata, boolean threaded)
+	{
+		time(label, code, startip, nglobals, metadata, threaded, 0);
+	}
+
+	/** Time best of RUNS; jitThreshold>0 turns on the JIT */
+	static void time(String label, int[] code, int startip, int nglobals,
+					 FuncMetaData[] metadata, boolean threaded, int jitThreshold)
+	{
+		for (int i=1; i<=WARMUP; i++) {
+			newVM(code, startip, nglobals, metadata, threaded, jitThreshold).exec();
+		}
+		long best = Long.MAX_VALUE;
+		for (int i=1; i<=RUNS; i++) {
+			VM vm = newVM(code, startip, nglobals, metadata, threaded, jitThreshold);
+			long start = System.nanoTime();
+			vm.exec();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("%s %8.2f ms\n", label, best / 1_000_000.0);
+	}
+
+	static void timeRegisters(String label, StackToRegister program, int nglobals) {
+		for (int i=1; i<=WARMUP; i++) {
+			new RegVM(program, nglobals).exec();
+		}
+		long best = Long.MAX_VALUE;
+		for (int i=1; i<=RUNS; i++) {
+			RegVM vm = new RegVM(program, nglobals);
+			long start = System.nanoTime();
+			vm.exec();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("%s %8.2f ms\n", label, best / 1_000_000.0);
+	}
+
+	static VM newVM(int[] code, int startip, int nglobals,
+					FuncMetaData[] metadata, boolean threaded, int jitThreshold)
+	{
+		VM vm = new VM(code, startip, nglobals, metadata, threaded);
+		if ( jitThreshold>0 ) vm.enableJIT(jitThreshold);
+		return vm;
+	}
+}
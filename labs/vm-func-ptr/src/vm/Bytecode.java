@@ -35,6 +35,30 @@ public class Bytecode {
 
 	public static final short HALT = 20;
 
+	// Superinstructions; see Peephole. Each does the work of a common
+	// sequence with a single dispatch.
+	public static final short LOAD_ICONST_ILT_BRF = 21; // LOAD n; ICONST k; ILT; BRF addr
+	public static final short GLOAD_GLOAD_ILT_BRF = 22; // GLOAD a; GLOAD b; ILT; BRF addr
+	public static final short GINC = 23;                // GLOAD a; ICONST k; IADD; GSTORE a
+	public static final short LOAD_ICONST_ISUB_CALL = 24; // LOAD n; ICONST k; ISUB; CALL f
+
+	public static final short TAILCALL = 25; // CALL f; RET reusing the current frame
+
+	// Heap; see Heap. References are opaque ints, 0 is null.
+	public static final short NEWARRAY  = 26; // pop n, push ref to n zeroed ints
+	public static final short IALOAD    = 27; // pop index, ref; push ref[index]
+	public static final short IASTORE   = 28; // pop value, index, ref; ref[index] = value
+	public static final short ARRAYLEN  = 29; // pop ref, push its length
+	public static final short NEWSTRUCT = 30; // push ref to struct of n zeroed fields
+	public static final short GETFIELD  = 31; // pop ref, push field n
+	public static final short PUTFIELD  = 32; // pop value, ref; set field n
+
+	public static final short GCAS = 33; // pop new, expected; if global a is expected set it to new; push whether we did
+
+	// Host functions; see Natives
+	public static final short CALLNATIVE = 34;       // CALLNATIVE f, n: pop n args, push result
+	public static final short CALLNATIVE_ARRAY = 35; // pop ref, from, n; push f(ref[from..from+n-1])
+
 	public static Instruction[] instructions = new Instruction[] {
 		null, // <INVALID>
 		new Instruction("iadd"), // index is the opcode
@@ -56,6 +80,21 @@ public class Bytecode {
 		new Instruction("ret"),
 		new Instruction("funcidx", 1),
 		new Instruction("callidx"),
-		new Instruction("halt")
+		new Instruction("halt"),
+		new Instruction("load_iconst_ilt_brf", 3),
+		new Instruction("gload_gload_ilt_brf", 3),
+		new Instruction("ginc", 2),
+		new Instruction("load_iconst_isub_call", 3),
+		new Instruction("tailcall", 1),
+		new Instruction("newarray"),
+		new Instruction("iaload"),
+		new Instruction("iastore"),
+		new Instruction("arraylen"),
+		new Instruction("newstruct", 1),
+		new Instruction("getfield", 1),
+		new Instruction("putfield", 1),
+		new Instruction("gcas", 1),
+		new Instruction("callnative", 2),
+		new Instruction("callnative_array", 1)
 	};
 }
@@ -0,0 +1,300 @@
+package vm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/** Save a stopped VM's execution state to a file and resume it later,
+ *  possibly in a fresh JVM. Stop the VM between instructions with
+ *  VM.resume(budget), call save(), and keep going. The file holds two
+ *  slots and save() alternates between them:
+ *
+ *  	header 0, header 1:		HEADER_SIZE bytes each
+ *  		int magic			"VMCK"
+ *  		int version
+ *  		int generation		bumped by each save()
+ *  		int codeLength		to check we resume the same program
+ *  		int codeHash
+ *  		int nglobals
+ *  		int ip, sp, callsp, fp, fsp
+ *  		int nhandles, heapTop	0 if the VM has no heap
+ *  		long stateOffset	where this slot's stack etc... start
+ *  		int crc				CRC32 of the above, the globals, and the state
+ *  	globals 0, globals 1:	nglobals ints each, in PAGE_SIZE-int pages
+ *  	state regions:			for each slot, at its stateOffset
+ *  		stack:				stack[0..sp]
+ *  		frames:				frames[0..fsp-1], the call stack
+ *  		handles:			the heap's handle table
+ *  		heap:				heap[0..heapTop-1]
+ *
+ *  save() writes everything for one slot, forces it to disk, then commits
+ *  by writing that slot's header. It never touches the other slot, which
+ *  holds the previous checkpoint, so a crash part way through leaves a
+ *  header whose CRC doesn't match and restore() falls back to the other
+ *  slot. Opening a Checkpoint on an existing file keeps its newest valid
+ *  slot and only trims the file after a save commits, so restore() then
+ *  new Checkpoint() always leaves something to resume from. (A file for
+ *  a program with a different number of globals has a different layout;
+ *  we treat it as empty.)
+ *
+ *  Each slot's globals sit at a fixed offset so save() rewrites in place
+ *  only the pages that changed since that slot was last written. We find
+ *  them by comparing against a copy of globals as last saved to the slot
+ *  rather than by tracking GSTOREs, so the interpreter pays nothing.
+ *  Registers, stack, frames, and heap get rewritten every time. JIT-
+ *  compiled code and inline caches aren't saved; they're rebuilt as the
+ *  resumed VM runs.
+ */
+public class Checkpoint implements AutoCloseable {
+	public static final int MAGIC = 0x564D434B; // "VMCK"
+	public static final int VERSION = 3;
+	public static final int HEADER_SIZE = 16*4;
+	public static final int PAGE_SIZE = 1024; // ints
+
+	protected final VM vm;
+	protected final FileChannel channel;
+
+	/** globals as last saved to each slot; null until we write the slot */
+	protected final int[][] saved = new int[2][];
+
+	/** Where each slot's state region is; 0, 0 if the slot holds nothing */
+	protected final long[] stateStart = new long[2];
+	protected final long[] stateEnd = new long[2];
+
+	/** Slot of the newest committed save or -1 */
+	protected int committed = -1;
+	protected int generation = 0;
+
+	/** globals as bytes for the CRC; reused across saves */
+	protected ByteBuffer globalsBytes;
+
+	// stats
+	public int saves = 0;
+	public long pagesWritten = 0;
+	public long bytesWritten = 0;
+
+	/** A slot's header, once its CRC checks out */
+	protected static class Header {
+		int slot, generation, codeLength, codeHash, nglobals;
+		int ip, sp, callsp, fp, fsp, nhandles, heapTop;
+		long stateOffset;
+
+		long stateEnd() { return stateOffset + (sp + 1L + fsp + nhandles + heapTop)*4; }
+	}
+
+	public Checkpoint(VM vm, Path path) throws IOException {
+		if ( vm.mapped!=null ) throw new Error("can't checkpoint a VM with mapped globals");
+		this.vm = vm;
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+								   StandardOpenOption.WRITE);
+		if ( channel.size()==0 ) return;
+		ByteBuffer file = read(channel);
+		for (int slot = 0; slot<2; slot++) {
+			Header h = header(file, slot);
+			if ( h==null || h.nglobals!=vm.globals.length ) continue;
+			stateStart[slot] = h.stateOffset;
+			stateEnd[slot] = h.stateEnd();
+			if ( committed<0 || h.generation>generation ) {
+				committed = slot;
+				generation = h.generation;
+			}
+		}
+	}
+
+	/** Write vm's state to the slot we didn't write last time, then commit
+	 *  it; vm must be stopped between instructions.
+	 */
+	public void save() throws IOException {
+		int slot = committed<0 ? 0 : 1 - committed;
+		int other = 1 - slot;
+		int[] globals = vm.globals;
+		long globalsOffset = globalsOffset(slot, globals.length);
+		int[] last = saved[slot];
+		int npages = (globals.length + PAGE_SIZE - 1) / PAGE_SIZE;
+		for (int p = 0; p<npages; p++) {
+			int from = p * PAGE_SIZE;
+			int to = Math.min(from + PAGE_SIZE, globals.length);
+			if ( last!=null && Arrays.equals(globals, from, to, last, from, to) ) continue;
+			write(ints(globals, from, to - from), globalsOffset + from*4L);
+			pagesWritten++;
+		}
+		if ( last==null ) saved[slot] = globals.clone();
+		else System.arraycopy(globals, 0, last, 0, globals.length);
+
+		Heap heap = vm.heap;
+		int nhandles = heap!=null ? heap.nhandles : 0;
+		int heapTop = heap!=null ? heap.top : 0;
+		ByteBuffer state = ByteBuffer.allocate((vm.sp + 1 + vm.fsp + nhandles + heapTop) * 4);
+		IntBuffer out = state.asIntBuffer().put(vm.stack, 0, vm.sp+1).put(vm.frames, 0, vm.fsp);
+		if ( heap!=null ) out.put(heap.handles, 0, nhandles).put(heap.heap, 0, heapTop);
+		// before the other slot's state if it fits, otherwise after it
+		long base = stateBase(globals.length);
+		long stateOffset = base;
+		if ( stateEnd[other]>0 && base + state.capacity() > stateStart[other] ) stateOffset = stateEnd[other];
+		write(state.duplicate(), stateOffset);
+		channel.force(false);
+
+		if ( globalsBytes==null || globalsBytes.capacity()!=globals.length*4 ) {
+			globalsBytes = ByteBuffer.allocate(globals.length*4);
+		}
+		globalsBytes.clear();
+		globalsBytes.asIntBuffer().put(globals);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putInt(generation + 1)
+			  .putInt(vm.code.length).putInt(Arrays.hashCode(vm.code)).putInt(globals.length)
+			  .putInt(vm.ip).putInt(vm.sp).putInt(vm.callsp).putInt(vm.fp).putInt(vm.fsp)
+			  .putInt(nhandles).putInt(heapTop).putLong(stateOffset);
+		CRC32 crc = new CRC32();
+		crc.update(header.array(), 0, HEADER_SIZE - 4);
+		crc.update(globalsBytes);
+		crc.update(state.rewind());
+		header.putInt((int)crc.getValue());
+		header.flip();
+		write(header, slot * (long)HEADER_SIZE);
+		channel.force(false);
+
+		committed = slot;
+		generation++;
+		stateStart[slot] = stateOffset;
+		stateEnd[slot] = stateOffset + state.capacity();
+		channel.truncate(Math.max(base, Math.max(stateEnd[0], stateEnd[1])));
+		saves++;
+	}
+
+	/** Create a VM for program in the state saved in path; continue it
+	 *  with resume(). We use the newest slot whose CRC checks out.
+	 */
+	public static VM restore(Program program, Path path) throws IOException {
+		ByteBuffer file;
+		try ( FileChannel channel = FileChannel.open(path, StandardOpenOption.READ) ) {
+			file = read(channel);
+		}
+		Header h = null;
+		for (int slot = 0; slot<2; slot++) {
+			Header s = header(file, slot);
+			if ( s!=null && (h==null || s.generation>h.generation) ) h = s;
+		}
+		if ( h==null ) {
+			boolean isCheckpoint = file.limit()>=4 && file.getInt(0)==MAGIC;
+			if ( !isCheckpoint ) throw new Error("not a VM checkpoint: "+path);
+			throw new Error("no complete version "+VERSION+" checkpoint in "+path);
+		}
+		if ( h.codeLength!=program.code.length || h.codeHash!=Arrays.hashCode(program.code) ) {
+			throw new Error("checkpoint "+path+" is for a different program");
+		}
+		VM vm = new VM(program, new int[h.nglobals], false, false);
+		vm.ip = h.ip;
+		vm.sp = h.sp;
+		vm.callsp = h.callsp;
+		vm.fp = h.fp;
+		vm.fsp = h.fsp;
+		slice(file, globalsOffset(h.slot, h.nglobals), h.nglobals*4L).asIntBuffer().get(vm.globals);
+		// call() reserved each frame's max stack; we don't know which
+		// are active without walking frames so reserve the largest
+		int max = program.mainMaxStack;
+		for (int m : program.maxStack) max = Math.max(max, m);
+		vm.ensureStack(vm.sp + 1 + max);
+		if ( vm.fsp>vm.frames.length ) vm.frames = new int[vm.fsp];
+		IntBuffer in = slice(file, h.stateOffset, h.stateEnd() - h.stateOffset).asIntBuffer();
+		in.get(vm.stack, 0, vm.sp+1);
+		in.get(vm.frames, 0, vm.fsp);
+		if ( h.nhandles>0 ) {
+			Heap heap = new Heap(Math.max(Heap.DEFAULT_HEAP_SIZE, h.heapTop));
+			heap.handles = new int[Math.max(heap.handles.length, h.nhandles)];
+			heap.free = new int[heap.handles.length];
+			in.get(heap.handles, 0, h.nhandles);
+			in.get(heap.heap, 0, h.heapTop);
+			heap.nhandles = h.nhandles;
+			heap.top = h.heapTop;
+			for (int i = h.nhandles-1; i>=0; i--) {
+				if ( heap.handles[i]<0 ) heap.free[heap.nfree++] = i;
+			}
+			vm.heap = heap;
+		}
+		return vm;
+	}
+
+	/** Decode slot's header from file and check its CRC against the slot's
+	 *  globals and state; null if the slot doesn't hold a complete save.
+	 */
+	protected static Header header(ByteBuffer file, int slot) {
+		int at = slot * HEADER_SIZE;
+		if ( file.limit() < at + HEADER_SIZE ) return null;
+		if ( file.getInt(at)!=MAGIC || file.getInt(at+4)!=VERSION ) return null;
+		Header h = new Header();
+		h.slot = slot;
+		h.generation = file.getInt(at+8);
+		h.codeLength = file.getInt(at+12);
+		h.codeHash = file.getInt(at+16);
+		h.nglobals = file.getInt(at+20);
+		h.ip = file.getInt(at+24);
+		h.sp = file.getInt(at+28);
+		h.callsp = file.getInt(at+32);
+		h.fp = file.getInt(at+36);
+		h.fsp = file.getInt(at+40);
+		h.nhandles = file.getInt(at+44);
+		h.heapTop = file.getInt(at+48);
+		h.stateOffset = file.getLong(at+52);
+		int crc = file.getInt(at+60);
+		if ( h.nglobals<0 || h.sp<-1 || h.fsp<0 || h.nhandles<0 || h.heapTop<0 ) return null;
+		long globalsOffset = globalsOffset(slot, h.nglobals);
+		if ( h.stateOffset<stateBase(h.nglobals) || h.stateEnd()>file.limit() ) return null;
+		CRC32 check = new CRC32();
+		check.update(slice(file, at, HEADER_SIZE - 4));
+		check.update(slice(file, globalsOffset, h.nglobals*4L));
+		check.update(slice(file, h.stateOffset, h.stateEnd() - h.stateOffset));
+		return (int)check.getValue()==crc ? h : null;
+	}
+
+	protected static long globalsOffset(int slot, int nglobals) {
+		return 2L*HEADER_SIZE + slot*(nglobals*4L);
+	}
+
+	/** Where state regions may start, after both slots' globals */
+	protected static long stateBase(int nglobals) {
+		return globalsOffset(2, nglobals);
+	}
+
+	protected static ByteBuffer read(FileChannel channel) throws IOException {
+		if ( channel.size()>Integer.MAX_VALUE ) throw new Error("checkpoint too big to read");
+		ByteBuffer buf = ByteBuffer.allocate((int)channel.size());
+		long position = 0;
+		while ( buf.hasRemaining() ) {
+			int n = channel.read(buf, position);
+			if ( n<0 ) break;
+			position += n;
+		}
+		buf.flip();
+		return buf;
+	}
+
+	protected static ByteBuffer slice(ByteBuffer file, long offset, long n) {
+		ByteBuffer b = file.duplicate();
+		b.limit((int)(offset + n));
+		b.position((int)offset);
+		return b;
+	}
+
+	protected void write(ByteBuffer buf, long position) throws IOException {
+		bytesWritten += buf.remaining();
+		while ( buf.hasRemaining() ) {
+			position += channel.write(buf, position);
+		}
+	}
+
+	protected static ByteBuffer ints(int[] a, int from, int n) {
+		ByteBuffer buf = ByteBuffer.allocate(n*4);
+		buf.asIntBuffer().put(a, from, n);
+		return buf;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
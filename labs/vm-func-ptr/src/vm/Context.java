@@ -1,12 +1,23 @@
 package vm;
 
-/** To call, push one of these and pop to return */
+import java.util.Arrays;
+
+/** A debugging view of one call frame. The VM itself keeps frames
+ *  in a flat int[]; see VM.frames and VM.getCallStack().
+ */
 public class Context {
+	FuncMetaData func;
 	int returnip;
 	int[] locals; // args + locals, indexed from 0
 
-	public Context(int returnip, int nlocals) {
+	public Context(FuncMetaData func, int returnip, int[] locals) {
+		this.func = func;
 		this.returnip = returnip;
-		locals = new int[nlocals];
+		this.locals = locals;
+	}
+
+	@Override
+	public String toString() {
+		return func.name+Arrays.toString(locals)+" returnip="+returnip;
 	}
 }
@@ -0,0 +1,156 @@
+package vm;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Execution counts for deciding which superinstructions, inline caches,
+ *  and JIT thresholds pay off. Set vm.counters and the VM counts, per
+ *  instruction executed:
+ *
+ *  	opcodes[op]						executions of each opcode
+ *  	pairs[prev*NOPS+op]				each opcode following another
+ *  	taken[ip], notTaken[ip]			each conditional branch site
+ *  	calls[findex]					entries into each function
+ *
+ *  All counts live in long[] arrays sized when we're created so counting
+ *  never allocates. Like tracing, counting runs in VM.cpuTraced() and
+ *  keeps cpu() and cpuThreaded() free of checks. Calls made from inside
+ *  JIT-compiled code aren't counted.
+ *
+ *  If output is non-null, the VM writes the counts there at HALT, as
+ *  JSON if the file name ends in .json otherwise CSV.
+ */
+public class Counters {
+	public static final int NOPS = Bytecode.instructions.length;
+
+	public final long[] opcodes = new long[NOPS];
+	public final long[] pairs = new long[NOPS*NOPS];
+	public final long[] taken;
+	public final long[] notTaken;
+	public final long[] calls;
+
+	public Path output;
+
+	protected final int[] code;
+	protected final FuncMetaData[] metadata;
+	protected int prev = 0; // previous opcode; 0 is <INVALID>
+
+	public Counters(Program program) {
+		this.code = program.code;
+		this.metadata = program.metadata!=null ? program.metadata : new FuncMetaData[0];
+		taken = new long[code.length];
+		notTaken = new long[code.length];
+		calls = new long[metadata.length];
+	}
+
+	/** Count the instruction at ip, which just executed; nextip is where
+	 *  it went and calldepth how many calls it added.
+	 */
+	public void count(int ip, int opcode, int nextip, int calldepth, int[] frames, int fp) {
+		opcodes[opcode]++;
+		pairs[prev*NOPS + opcode]++;
+		prev = opcode;
+		switch ( opcode ) {
+			case Bytecode.BRT :
+			case Bytecode.BRF :
+			case Bytecode.LOAD_ICONST_ILT_BRF :
+			case Bytecode.GLOAD_GLOAD_ILT_BRF :
+				// target is always the last operand
+				if ( nextip==code[ip+Bytecode.instructions[opcode].n] ) taken[ip]++;
+				else notTaken[ip]++;
+				break;
+		}
+		if ( calldepth>0 || opcode==Bytecode.TAILCALL ) calls[frames[fp+VM.FRAME_FUNC]]++;
+	}
+
+	public long instructions() {
+		long n = 0;
+		for (long c : opcodes) n += c;
+		return n;
+	}
+
+	public void write(Path path) throws IOException {
+		try ( Writer w = Files.newBufferedWriter(path, StandardCharsets.UTF_8) ) {
+			if ( path.toString().endsWith(".json") ) writeJSON(w);
+			else writeCSV(w);
+		}
+	}
+
+	/** kind,name,address,count,taken,not_taken */
+	public void writeCSV(Writer out) {
+		PrintWriter w = new PrintWriter(out);
+		w.println("kind,name,address,count,taken,not_taken");
+		for (int op = 1; op<NOPS; op++) {
+			if ( opcodes[op]>0 ) w.printf("opcode,%s,,%d,,\n", name(op), opcodes[op]);
+		}
+		for (int p : hotPairs()) {
+			w.printf("pair,%s %s,,%d,,\n", name(p/NOPS), name(p%NOPS), pairs[p]);
+		}
+		for (int ip = 0; ip<code.length; ip++) {
+			if ( taken[ip]+notTaken[ip]>0 ) {
+				w.printf("branch,%s,%d,%d,%d,%d\n", name(code[ip]), ip,
+						 taken[ip]+notTaken[ip], taken[ip], notTaken[ip]);
+			}
+		}
+		for (int f = 0; f<calls.length; f++) {
+			w.printf("function,%s,%d,%d,,\n", metadata[f].name, metadata[f].address, calls[f]);
+		}
+		w.flush();
+	}
+
+	public void writeJSON(Writer out) {
+		PrintWriter w = new PrintWriter(out);
+		w.printf("{\n  \"instructions\": %d,\n  \"opcodes\": {", instructions());
+		String sep = "";
+		for (int op = 1; op<NOPS; op++) {
+			if ( opcodes[op]>0 ) {
+				w.printf("%s\n    \"%s\": %d", sep, name(op), opcodes[op]);
+				sep = ",";
+			}
+		}
+		w.print("\n  },\n  \"pairs\": [");
+		sep = "";
+		for (int p : hotPairs()) {
+			w.printf("%s\n    {\"first\": \"%s\", \"second\": \"%s\", \"count\": %d}",
+					 sep, name(p/NOPS), name(p%NOPS), pairs[p]);
+			sep = ",";
+		}
+		w.print("\n  ],\n  \"branches\": [");
+		sep = "";
+		for (int ip = 0; ip<code.length; ip++) {
+			if ( taken[ip]+notTaken[ip]>0 ) {
+				w.printf("%s\n    {\"address\": %d, \"op\": \"%s\", \"taken\": %d, \"notTaken\": %d}",
+						 sep, ip, name(code[ip]), taken[ip], notTaken[ip]);
+				sep = ",";
+			}
+		}
+		w.print("\n  ],\n  \"functions\": {");
+		sep = "";
+		for (int f = 0; f<calls.length; f++) {
+			w.printf("%s\n    \"%s\": %d", sep, metadata[f].name, calls[f]);
+			sep = ",";
+		}
+		w.print("\n  }\n}\n");
+		w.flush();
+	}
+
+	/** Opcode pairs that occurred, most frequent first */
+	protected List<Integer> hotPairs() {
+		List<Integer> hot = new ArrayList<Integer>();
+		for (int p = 0; p<pairs.length; p++) {
+			if ( p/NOPS>0 && pairs[p]>0 ) hot.add(p); // skip the <INVALID> start
+		}
+		hot.sort((a, b) -> Long.compare(pairs[b], pairs[a]));
+		return hot;
+	}
+
+	protected static String name(int opcode) {
+		return Bytecode.instructions[opcode].name;
+	}
+}
@@ -0,0 +1,178 @@
+package vm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/** Write code memory as text that Assembler reads back:
+ *
+ *  	.globals 2
+ *  	.def fibonacci: args=1 locals=0
+ *  		load 0
+ *  		...
+ *  		brf L10
+ *  		...
+ *  	L10:
+ *
+ *  Branch targets get labels L<address>; if execution doesn't start at
+ *  a function, it starts at label main. Call operands print as function
+ *  names. We make one pass to find branch targets and another to write,
+ *  straight to the Writer with no per-instruction allocation: names come
+ *  from Bytecode and metadata, and numbers are formatted into a scratch
+ *  buffer. Assembler numbers functions in .def order so functions whose
+ *  metadata isn't in address order get renumbered.
+ */
+public class Disassembler {
+	protected final int[] code;
+	protected final FuncMetaData[] metadata;
+	protected final int startip;
+	protected final int nglobals;
+
+	private final char[] digits = new char[11];
+
+	public Disassembler(Program program) {
+		this(program.code, program.metadata, program.startip, program.nglobals);
+	}
+
+	public Disassembler(int[] code, FuncMetaData[] metadata, int startip, int nglobals) {
+		this.code = code;
+		this.metadata = metadata;
+		this.startip = startip;
+		this.nglobals = nglobals;
+	}
+
+	public void disassemble(Writer out) throws IOException {
+		Writer w = out instanceof BufferedWriter ? out : new BufferedWriter(out, 1<<16);
+		boolean[] isTarget = targets();
+		boolean startsAtFunc = false;
+		if ( metadata!=null ) {
+			for (FuncMetaData f : metadata) {
+				if ( f.address==startip && f.name.equals("main") ) startsAtFunc = true;
+			}
+		}
+		if ( nglobals>0 ) {
+			w.write(".globals ");
+			number(w, nglobals);
+			w.write('\n');
+		}
+		Integer[] defs = new Integer[metadata!=null ? metadata.length : 0]; // by address
+		for (int i = 0; i<defs.length; i++) defs[i] = i;
+		Arrays.sort(defs, Comparator.comparingInt(i -> metadata[i].address));
+		int d = 0;
+		int ip = 0;
+		while ( ip<code.length ) {
+			while ( d<defs.length && metadata[defs[d]].address<=ip ) {
+				if ( metadata[defs[d]].address==ip ) def(w, metadata[defs[d]]);
+				d++;
+			}
+			if ( ip==startip && !startsAtFunc && ip>0 ) w.write("main:\n");
+			if ( isTarget[ip] ) {
+				w.write('L');
+				number(w, ip);
+				w.write(":\n");
+			}
+			ip = instruction(w, ip);
+		}
+		w.flush();
+	}
+
+	/** Write the instruction at ip and return the address of the next one */
+	protected int instruction(Writer w, int ip) throws IOException {
+		int opcode = code[ip];
+		if ( opcode<=0 || opcode>=Bytecode.instructions.length ) {
+			w.write("\t; invalid opcode ");
+			number(w, opcode);
+			w.write('\n');
+			return ip + 1;
+		}
+		Bytecode.Instruction instr = Bytecode.instructions[opcode];
+		w.write('\t');
+		w.write(instr.name);
+		for (int i = 1; i<=instr.n && ip+i<code.length; i++) {
+			w.write(i==1 ? " " : ", ");
+			int v = code[ip+i];
+			boolean last = i==instr.n;
+			switch ( opcode ) {
+				case Bytecode.BR :
+				case Bytecode.BRT :
+				case Bytecode.BRF :
+					label(w, v);
+					break;
+				case Bytecode.LOAD_ICONST_ILT_BRF :
+				case Bytecode.GLOAD_GLOAD_ILT_BRF :
+					if ( last ) label(w, v);
+					else number(w, v);
+					break;
+				case Bytecode.CALL :
+				case Bytecode.TAILCALL :
+				case Bytecode.FUNCIDX :
+					func(w, v);
+					break;
+				case Bytecode.LOAD_ICONST_ISUB_CALL :
+					if ( last ) func(w, v);
+					else number(w, v);
+					break;
+				default :
+					number(w, v);
+			}
+		}
+		w.write('\n');
+		return ip + 1 + instr.n;
+	}
+
+	protected void def(Writer w, FuncMetaData f) throws IOException {
+		w.write(".def ");
+		w.write(f.name);
+		w.write(": args=");
+		number(w, f.nargs);
+		w.write(" locals=");
+		number(w, f.nlocals);
+		w.write('\n');
+	}
+
+	protected void label(Writer w, int addr) throws IOException {
+		if ( addr>=0 && addr<code.length ) {
+			w.write('L');
+			number(w, addr);
+		}
+		else {
+			number(w, addr); // bad address; keep it as is
+		}
+	}
+
+	protected void func(Writer w, int findex) throws IOException {
+		if ( metadata!=null && findex>=0 && findex<metadata.length ) w.write(metadata[findex].name);
+		else number(w, findex);
+	}
+
+	/** Format v into digits without allocating a String */
+	protected void number(Writer w, int v) throws IOException {
+		long x = v;
+		boolean negative = x<0;
+		if ( negative ) x = -x;
+		int i = digits.length;
+		do {
+			digits[--i] = (char)('0' + x%10);
+			x /= 10;
+		} while ( x>0 );
+		if ( negative ) digits[--i] = '-';
+		w.write(digits, i, digits.length - i);
+	}
+
+	protected boolean[] targets() {
+		boolean[] isTarget = new boolean[code.length];
+		int ip = 0;
+		while ( ip<code.length ) {
+			int opcode = code[ip];
+			int a = Optimizer.addressOperand(opcode);
+			if ( a>0 && ip+a<code.length ) {
+				int addr = code[ip+a];
+				if ( addr>=0 && addr<code.length ) isTarget[addr] = true;
+			}
+			ip += 1 + Peephole.nargs(opcode);
+		}
+		return isTarget;
+	}
+}
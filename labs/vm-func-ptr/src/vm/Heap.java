@@ -0,0 +1,192 @@
+package vm;
+
+import java.util.Arrays;
+
+/** A VM-managed heap of int arrays and structs (a struct is just an
+ *  array with a constant number of fields) in one big int[]. Each
+ *  object is a header followed by its elements:
+ *
+ *  	heap[addr]				handle
+ *  	heap[addr+1]			length
+ *  	heap[addr+2..]			elements
+ *
+ *  Guest code never sees heap addresses. A reference is REF_BASE plus
+ *  an index into the handle table, which holds the object's current
+ *  address; 0 is null. Allocation bumps top.
+ *
+ *  When the heap fills up we mark-compact. The VM's values are untyped
+ *  so we mark conservatively: any int in the operand stack, frames,
+ *  globals, or a live object that names a live handle keeps that
+ *  object alive. An int that just happens to look like a reference only
+ *  retains garbage; it can't corrupt anything because compaction slides
+ *  objects down in address order and updates only the handle table,
+ *  never the values that refer to them. Handles of dead objects are
+ *  recycled. If compaction doesn't free enough we double the heap, up
+ *  to maxHeapSize.
+ *
+ *  Each VM has its own heap, created on first use; a reference stored
+ *  in globals shared with another VM means nothing to that VM. We don't
+ *  scan MappedGlobals, which can be huge, so references stored there
+ *  don't keep objects alive.
+ */
+public class Heap {
+	public static final int REF_BASE = 1<<30;
+	public static final int NULL = 0;
+	public static final int HEADER_SIZE = 2;
+	public static final int DEFAULT_HEAP_SIZE = 64*1024;	// ints
+	public static final int DEFAULT_MAX_HEAP_SIZE = 1<<26;
+
+	public int maxHeapSize = DEFAULT_MAX_HEAP_SIZE;
+
+	protected int[] heap;
+	protected int top = 0;			// next free word
+
+	protected int[] handles;		// handle -> address or -1 if free
+	protected int nhandles = 0;		// handles ever used
+	protected int[] free;			// stack of free handles
+	protected int nfree = 0;
+
+	// stats
+	public int collections = 0;
+	public long reclaimed = 0;		// words freed by all collections
+	public long gcNanos = 0;
+
+	public Heap() { this(DEFAULT_HEAP_SIZE); }
+
+	public Heap(int size) {
+		heap = new int[size];
+		handles = new int[256];
+		free = new int[256];
+	}
+
+	/** Allocate an array of n zeros; vm supplies the roots if we must collect */
+	public int alloc(int n, VM vm) {
+		if ( n<0 ) throw new Error("negative array size "+n);
+		int size = HEADER_SIZE + n;
+		if ( top + size > heap.length ) {
+			collect(vm);
+			if ( top + size > heap.length ) grow(top + size);
+		}
+		int h = newHandle();
+		int addr = top;
+		heap[addr] = h;
+		heap[addr+1] = n;
+		Arrays.fill(heap, addr+HEADER_SIZE, addr+size, 0);
+		top += size;
+		handles[h] = addr;
+		return REF_BASE + h;
+	}
+
+	public int load(int ref, int i) {
+		int addr = address(ref);
+		if ( i<0 || i>=heap[addr+1] ) throw new Error("index "+i+" out of bounds for length "+heap[addr+1]);
+		return heap[addr+HEADER_SIZE+i];
+	}
+
+	public void store(int ref, int i, int value) {
+		int addr = address(ref);
+		if ( i<0 || i>=heap[addr+1] ) throw new Error("index "+i+" out of bounds for length "+heap[addr+1]);
+		heap[addr+HEADER_SIZE+i] = value;
+	}
+
+	/** Index in the backing array of ref[from], checking that
+	 *  ref[from..from+n-1] is in bounds
+	 */
+	public int slice(int ref, int from, int n) {
+		int addr = address(ref);
+		int len = heap[addr+1];
+		if ( from<0 || n<0 || from>len-n ) {
+			throw new Error("slice ["+from+", "+from+"+"+n+") out of bounds for length "+len);
+		}
+		return addr+HEADER_SIZE+from;
+	}
+
+	public int length(int ref) {
+		return heap[address(ref)+1];
+	}
+
+	protected int address(int ref) {
+		int h = ref - REF_BASE;
+		if ( h<0 || h>=nhandles || handles[h]<0 ) {
+			throw new Error(ref==NULL ? "null reference" : "not a reference: "+ref);
+		}
+		return handles[h];
+	}
+
+	protected boolean isRef(int v) {
+		int h = v - REF_BASE;
+		return h>=0 && h<nhandles && handles[h]>=0;
+	}
+
+	protected int newHandle() {
+		if ( nfree>0 ) return free[--nfree];
+		if ( nhandles==handles.length ) {
+			handles = Arrays.copyOf(handles, handles.length*2);
+			free = Arrays.copyOf(free, free.length*2);
+		}
+		return nhandles++;
+	}
+
+	/** Mark everything reachable from vm's stack, frames, and globals then
+	 *  slide live objects down over the dead ones.
+	 */
+	public void collect(VM vm) {
+		long start = System.nanoTime();
+		boolean[] marked = new boolean[nhandles];
+		int[] work = new int[Math.max(nhandles, 1)];
+		int n = 0;
+		n = markRoots(vm.stack, 0, vm.sp+1, marked, work, n);
+		n = markRoots(vm.frames, 0, vm.fsp, marked, work, n);
+		n = markRoots(vm.globals, 0, vm.globals.length, marked, work, n);
+		while ( n>0 ) {
+			int addr = handles[work[--n]];
+			n = markRoots(heap, addr+HEADER_SIZE, addr+HEADER_SIZE+heap[addr+1], marked, work, n);
+		}
+
+		int to = 0;
+		int addr = 0;
+		while ( addr<top ) {
+			int h = heap[addr];
+			int size = HEADER_SIZE + heap[addr+1];
+			if ( marked[h] ) {
+				if ( to!=addr ) System.arraycopy(heap, addr, heap, to, size);
+				handles[h] = to;
+				to += size;
+			}
+			else {
+				handles[h] = -1;
+				free[nfree++] = h;
+			}
+			addr += size;
+		}
+		reclaimed += top - to;
+		top = to;
+		collections++;
+		gcNanos += System.nanoTime() - start;
+	}
+
+	/** Mark and queue unmarked objects referenced from a[from..to-1] */
+	private int markRoots(int[] a, int from, int to, boolean[] marked, int[] work, int n) {
+		for (int i = from; i<to; i++) {
+			int v = a[i];
+			if ( isRef(v) && !marked[v-REF_BASE] ) {
+				marked[v-REF_BASE] = true;
+				work[n++] = v-REF_BASE;
+			}
+		}
+		return n;
+	}
+
+	protected void grow(int needed) {
+		if ( needed>maxHeapSize ) {
+			throw new Error("out of heap: need "+needed+" words, max is "+maxHeapSize);
+		}
+		int size = (int)Math.min(Math.max((long)needed, 2L*heap.length), maxHeapSize);
+		heap = Arrays.copyOf(heap, size);
+	}
+
+	/** Words in use, live or not yet collected */
+	public int used() { return top; }
+
+	public int size() { return heap.length; }
+}
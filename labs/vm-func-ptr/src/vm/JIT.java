@@ -0,0 +1,424 @@
+package vm;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/** A simple tiered JIT. The VM interprets a function until it has been
+ *  called threshold times then asks us to translate it, and any functions
+ *  it calls, into JVM bytecode. Each guest function becomes a static
+ *  method taking the args then the globals array and returning the
+ *  function's single return value:
+ *
+ *  	static int f<i>(int arg0, ..., int[] globals)
+ *
+ *  Guest locals map to JVM locals and the guest operand stack maps
+ *  directly onto the JVM operand stack.  We only compile functions that
+ *  return exactly one value and avoid CALLIDX, HALT, and other
+ *  instructions we can't translate; those stay in the interpreter.
+ *  Compiled code does not update the VM's frames so the call stack
+ *  shows only interpreted calls. A TAILCALL of the function itself
+ *  becomes a jump back to its start so it runs in constant JVM stack.
+ *  Other calls recurse on the JVM stack, which doesn't grow like the
+ *  VM's frames, so deep recursion that the interpreter survives can
+ *  overflow once compiled. If the compiled code has no side effects
+ *  (no GSTORE, GINC, or PRINT) we drop it and let the interpreter redo
+ *  the call; otherwise it's a VM call stack overflow Error.
+ */
+public class JIT implements Opcodes {
+	public static final int DEFAULT_THRESHOLD = 1000;
+
+	/** Implemented by the generated class so that the interpreter can
+	 *  call a compiled function with args sitting on its operand stack.
+	 */
+	public interface Compiled {
+		int invoke(int[] globals, int[] stack, int sp);
+	}
+
+	static class JITClassLoader extends ClassLoader {
+		JITClassLoader(ClassLoader parent) { super(parent); }
+		Class<?> define(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+
+	protected final int[] code;
+	protected final FuncMetaData[] metadata;
+	protected final int threshold;
+
+	protected final int[] counts;		// calls per function so far
+	protected final Compiled[] compiled;// non-null once compiled
+	protected final boolean[] pure;		// compiled code has no side effects
+	protected final JITClassLoader loader =
+		new JITClassLoader(JIT.class.getClassLoader());
+	protected int nclasses = 0;
+
+	public JIT(int[] code, FuncMetaData[] metadata, int threshold) {
+		this.code = code;
+		this.metadata = metadata;
+		this.threshold = threshold;
+		counts = new int[metadata.length];
+		compiled = new Compiled[metadata.length];
+		pure = new boolean[metadata.length];
+	}
+
+	/** Called by VM.call(); execute findex if compiled or if it just got
+	 *  hot enough to compile. Leave the return value on the VM's stack
+	 *  and return true.  Return false if the VM should interpret the call.
+	 */
+	public boolean call(VM vm, int findex) {
+		Compiled f = compiled[findex];
+		if ( f==null ) {
+			// after threshold, count keeps going so we try to compile only once
+			if ( ++counts[findex]!=threshold ) return false;
+			f = compile(findex);
+			if ( f==null ) return false;
+		}
+		int result;
+		try {
+			result = f.invoke(vm.globals, vm.stack, vm.sp);
+		}
+		catch (StackOverflowError soe) {
+			if ( pure[findex] ) { // nothing happened; interpret it from now on
+				compiled[findex] = null;
+				return false;
+			}
+			throw new Error("call stack overflow calling "+metadata[findex].name+
+							" in compiled code; out of JVM stack", soe);
+		}
+		vm.sp -= metadata[findex].nargs;
+		vm.stack[++vm.sp] = result;
+		return true;
+	}
+
+	public boolean isCompiled(int findex) { return compiled[findex]!=null; }
+
+	protected static boolean isLocal(FuncMetaData f, int i) { return i>=0 && i<f.nargs+f.nlocals; }
+
+	/** Compile findex and all functions it calls into one class; return
+	 *  null if any of them can't be compiled.
+	 */
+	protected Compiled compile(int findex) {
+		List<Integer> funcs = new ArrayList<Integer>();
+		List<BitSet> bodies = new ArrayList<BitSet>();
+		funcs.add(findex);
+		for (int i = 0; i<funcs.size(); i++) {	// funcs grows as we find calls
+			BitSet body = analyze(funcs.get(i), funcs);
+			if ( body==null ) return null;
+			bodies.add(body);
+		}
+
+		boolean noEffects = true;
+		for (BitSet body : bodies) {
+			for (int ip = body.nextSetBit(0); ip>=0; ip = body.nextSetBit(ip+1)) {
+				int op = code[ip];
+				if ( op==Bytecode.GSTORE || op==Bytecode.GINC || op==Bytecode.PRINT ) noEffects = false;
+			}
+		}
+
+		String className = "vm/jit/JITFunc"+(nclasses++);
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_5, ACC_PUBLIC+ACC_SUPER, className, null,
+				 "java/lang/Object", new String[] {"vm/JIT$Compiled"});
+		genConstructor(cw);
+		genInvoke(cw, className, findex);
+		for (int i = 0; i<funcs.size(); i++) {
+			genFunction(cw, className, funcs.get(i), bodies.get(i));
+		}
+		cw.visitEnd();
+
+		try {
+			Class<?> c = loader.define(className.replace('/', '.'), cw.toByteArray());
+			compiled[findex] = (Compiled)c.getDeclaredConstructor().newInstance();
+			pure[findex] = noEffects;
+		}
+		catch (Exception | LinkageError e) { // bad class; keep interpreting
+			return null;
+		}
+		return compiled[findex];
+	}
+
+	/** Find the instructions of function findex by following control flow
+	 *  from its address, checking that the stack height at each instruction
+	 *  is the same along all paths and that every RET returns exactly one
+	 *  value. Add called functions to funcs.  Return null if we can't
+	 *  compile findex.
+	 */
+	protected BitSet analyze(int findex, List<Integer> funcs) {
+		FuncMetaData f = metadata[findex];
+		BitSet body = new BitSet(code.length);
+		int[] heights = new int[code.length];
+		Arrays.fill(heights, -1);
+		List<Integer> work = new ArrayList<Integer>();
+		work.add(f.address);
+		heights[f.address] = 0;
+		while ( !work.isEmpty() ) {
+			int ip = work.remove(work.size()-1);
+			int height = heights[ip];
+			body.set(ip);
+			int opcode = code[ip];
+			if ( opcode<=0 || opcode>=Bytecode.instructions.length ) return null;
+			int next = ip + 1 + Bytecode.instructions[opcode].n;
+			int target = -1;
+			int g;
+			switch ( opcode ) {
+				case Bytecode.IADD : case Bytecode.ISUB : case Bytecode.IMUL : case Bytecode.ILT : case Bytecode.IEQ :
+					if ( height<2 ) return null;
+					height--;
+					break;
+				case Bytecode.ICONST : case Bytecode.FUNCIDX :
+					height++;
+					break;
+				case Bytecode.LOAD :
+					if ( !isLocal(f, code[ip+1]) ) return null;
+					height++;
+					break;
+				case Bytecode.STORE :
+					if ( height<1 || !isLocal(f, code[ip+1]) ) return null;
+					height--;
+					break;
+				case Bytecode.GLOAD :
+					height++;
+					break;
+				case Bytecode.GSTORE : case Bytecode.PRINT : case Bytecode.POP :
+					if ( height<1 ) return null;
+					height--;
+					break;
+				case Bytecode.BR :
+					target = code[ip+1];
+					next = -1;
+					break;
+				case Bytecode.BRT : case Bytecode.BRF :
+					if ( height<1 ) return null;
+					height--;
+					target = code[ip+1];
+					break;
+				case Bytecode.CALL :
+					g = code[ip+1];
+					if ( g<0 || g>=metadata.length || height<metadata[g].nargs ) return null;
+					height = height - metadata[g].nargs + 1;
+					if ( !funcs.contains(g) ) funcs.add(g);
+					break;
+				case Bytecode.RET :
+					if ( height!=1 ) return null;
+					next = -1;
+					break;
+				case Bytecode.TAILCALL :
+					g = code[ip+1];
+					if ( g<0 || g>=metadata.length || height!=metadata[g].nargs ) return null;
+					if ( !funcs.contains(g) ) funcs.add(g);
+					next = -1;
+					break;
+				case Bytecode.LOAD_ICONST_ILT_BRF :
+					if ( !isLocal(f, code[ip+1]) ) return null;
+					target = code[ip+3];
+					break;
+				case Bytecode.GLOAD_GLOAD_ILT_BRF :
+					target = code[ip+3];
+					break;
+				case Bytecode.GINC :
+					break;
+				case Bytecode.LOAD_ICONST_ISUB_CALL :
+					if ( !isLocal(f, code[ip+1]) ) return null;
+					g = code[ip+3];
+					if ( g<0 || g>=metadata.length || height+1<metadata[g].nargs ) return null;
+					height = height + 1 - metadata[g].nargs + 1;
+					if ( !funcs.contains(g) ) funcs.add(g);
+					break;
+				default : // CALLIDX, HALT, heap instructions, invalid
+					return null;
+			}
+			for (int succ : new int[] {next, target}) {
+				if ( succ<0 ) continue;
+				if ( succ>=code.length ) return null;
+				if ( heights[succ]<0 ) {
+					heights[succ] = height;
+					work.add(succ);
+				}
+				else if ( heights[succ]!=height ) return null;
+			}
+		}
+		return body;
+	}
+
+	protected void genConstructor(ClassWriter cw) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/** int invoke(int[] globals, int[] stack, int sp) {
+	 *  	return f<findex>(stack[sp-nargs+1], ..., stack[sp], globals);
+	 *  }
+	 */
+	protected void genInvoke(ClassWriter cw, String className, int findex) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "invoke", "([I[II)I", null, null);
+		mv.visitCode();
+		int nargs = metadata[findex].nargs;
+		for (int i = 0; i<nargs; i++) {
+			mv.visitVarInsn(ALOAD, 2);
+			mv.visitVarInsn(ILOAD, 3);
+			pushInt(mv, nargs - 1 - i);
+			mv.visitInsn(ISUB);
+			mv.visitInsn(IALOAD);
+		}
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitMethodInsn(INVOKESTATIC, className, "f"+findex, descriptor(findex));
+		mv.visitInsn(IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	protected void genFunction(ClassWriter cw, String className, int findex, BitSet body) {
+		FuncMetaData f = metadata[findex];
+		MethodVisitor mv = cw.visitMethod(ACC_STATIC, "f"+findex, descriptor(findex), null, null);
+		mv.visitCode();
+		int globals = f.nargs; // JVM local holding globals array
+		for (int i = f.nargs; i<f.nargs+f.nlocals; i++) { // JVM requires locals be set
+			mv.visitInsn(ICONST_0);
+			mv.visitVarInsn(ISTORE, local(f, i));
+		}
+		Label[] labels = new Label[code.length];
+		for (int ip = body.nextSetBit(0); ip>=0; ip = body.nextSetBit(ip+1)) {
+			labels[ip] = new Label();
+		}
+		for (int ip = body.nextSetBit(0); ip>=0; ip = body.nextSetBit(ip+1)) {
+			mv.visitLabel(labels[ip]);
+			int opcode = code[ip];
+			int n = Bytecode.instructions[opcode].n;
+			int operand = n>0 ? code[ip+1] : 0;
+			int operand2 = n>1 ? code[ip+2] : 0;
+			int operand3 = n>2 ? code[ip+3] : 0;
+			switch ( opcode ) {
+				case Bytecode.IADD : mv.visitInsn(IADD); break;
+				case Bytecode.ISUB : mv.visitInsn(ISUB); break;
+				case Bytecode.IMUL : mv.visitInsn(IMUL); break;
+				case Bytecode.ILT : genCompare(mv, IF_ICMPLT); break;
+				case Bytecode.IEQ : genCompare(mv, IF_ICMPEQ); break;
+				case Bytecode.ICONST :
+				case Bytecode.FUNCIDX :
+					pushInt(mv, operand);
+					break;
+				case Bytecode.LOAD : mv.visitVarInsn(ILOAD, local(f, operand)); break;
+				case Bytecode.STORE : mv.visitVarInsn(ISTORE, local(f, operand)); break;
+				case Bytecode.GLOAD :
+					mv.visitVarInsn(ALOAD, globals);
+					pushInt(mv, operand);
+					mv.visitInsn(IALOAD);
+					break;
+				case Bytecode.GSTORE :					// value
+					mv.visitVarInsn(ALOAD, globals);// value, globals
+					mv.visitInsn(SWAP);			// globals, value
+					pushInt(mv, operand);		// globals, value, addr
+					mv.visitInsn(SWAP);			// globals, addr, value
+					mv.visitInsn(IASTORE);
+					break;
+				case Bytecode.PRINT :
+					mv.visitFieldInsn(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+					mv.visitInsn(SWAP);
+					mv.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "println", "(I)V");
+					break;
+				case Bytecode.POP : mv.visitInsn(POP); break;
+				case Bytecode.BR : mv.visitJumpInsn(GOTO, labels[operand]); break;
+				case Bytecode.BRT :
+					mv.visitInsn(ICONST_1);
+					mv.visitJumpInsn(IF_ICMPEQ, labels[operand]);
+					break;
+				case Bytecode.BRF : mv.visitJumpInsn(IFEQ, labels[operand]); break;
+				case Bytecode.CALL :
+					mv.visitVarInsn(ALOAD, globals);
+					mv.visitMethodInsn(INVOKESTATIC, className, "f"+operand, descriptor(operand));
+					break;
+				case Bytecode.RET : mv.visitInsn(IRETURN); break;
+				case Bytecode.TAILCALL :
+					if ( operand==findex ) { // self tail call becomes a loop
+						for (int i = f.nargs-1; i>=0; i--) mv.visitVarInsn(ISTORE, local(f, i));
+						for (int i = f.nargs; i<f.nargs+f.nlocals; i++) {
+							mv.visitInsn(ICONST_0);
+							mv.visitVarInsn(ISTORE, local(f, i));
+						}
+						mv.visitJumpInsn(GOTO, labels[f.address]);
+					}
+					else { // JVM has no tail calls
+						mv.visitVarInsn(ALOAD, globals);
+						mv.visitMethodInsn(INVOKESTATIC, className, "f"+operand, descriptor(operand));
+						mv.visitInsn(IRETURN);
+					}
+					break;
+				case Bytecode.LOAD_ICONST_ILT_BRF :
+					mv.visitVarInsn(ILOAD, local(f, operand));
+					pushInt(mv, operand2);
+					mv.visitJumpInsn(IF_ICMPGE, labels[operand3]);
+					break;
+				case Bytecode.GLOAD_GLOAD_ILT_BRF :
+					mv.visitVarInsn(ALOAD, globals);
+					pushInt(mv, operand);
+					mv.visitInsn(IALOAD);
+					mv.visitVarInsn(ALOAD, globals);
+					pushInt(mv, operand2);
+					mv.visitInsn(IALOAD);
+					mv.visitJumpInsn(IF_ICMPGE, labels[operand3]);
+					break;
+				case Bytecode.GINC :
+					mv.visitVarInsn(ALOAD, globals);
+					pushInt(mv, operand);
+					mv.visitInsn(DUP2);
+					mv.visitInsn(IALOAD);
+					pushInt(mv, operand2);
+					mv.visitInsn(IADD);
+					mv.visitInsn(IASTORE);
+					break;
+				case Bytecode.LOAD_ICONST_ISUB_CALL :
+					mv.visitVarInsn(ILOAD, local(f, operand));
+					pushInt(mv, operand2);
+					mv.visitInsn(ISUB);
+					mv.visitVarInsn(ALOAD, globals);
+					mv.visitMethodInsn(INVOKESTATIC, className, "f"+operand3, descriptor(operand3));
+					break;
+			}
+		}
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/** a b -> (a op b) ? TRUE : FALSE */
+	protected void genCompare(MethodVisitor mv, int jvmCompare) {
+		Label isTrue = new Label();
+		Label done = new Label();
+		mv.visitJumpInsn(jvmCompare, isTrue);
+		pushInt(mv, VM.FALSE);
+		mv.visitJumpInsn(GOTO, done);
+		mv.visitLabel(isTrue);
+		pushInt(mv, VM.TRUE);
+		mv.visitLabel(done);
+	}
+
+	protected void pushInt(MethodVisitor mv, int v) {
+		if ( v>=-1 && v<=5 ) mv.visitInsn(ICONST_0+v);
+		else if ( v>=Byte.MIN_VALUE && v<=Byte.MAX_VALUE ) mv.visitIntInsn(BIPUSH, v);
+		else if ( v>=Short.MIN_VALUE && v<=Short.MAX_VALUE ) mv.visitIntInsn(SIPUSH, v);
+		else mv.visitLdcInsn(v);
+	}
+
+	/** Args are JVM locals 0..nargs-1, then globals, then guest locals */
+	protected int local(FuncMetaData f, int i) {
+		return i<f.nargs ? i : i+1;
+	}
+
+	protected String descriptor(int findex) {
+		StringBuilder buf = new StringBuilder("(");
+		for (int i = 0; i<metadata[findex].nargs; i++) buf.append('I');
+		buf.append("[I)I");
+		return buf.toString();
+	}
+}
@@ -0,0 +1,72 @@
+package vm;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/** Globals in a memory-mapped file rather than an int[]. The data sits
+ *  outside the Java heap so even a table of hundreds of MB adds nothing
+ *  for the GC to copy or scan, and any number of VMs, in this process
+ *  or others, that map the same file share the same globals:
+ *
+ *  	VM vm = new VM(program, new MappedGlobals(path, program.nglobals));
+ *
+ *  All access goes through a VarHandle view of the buffer: GLOAD and
+ *  GSTORE are volatile reads and writes, GINC an atomic add, and GCAS a
+ *  compare-and-set, so guest code can build its own locks and counters.
+ *  The OS writes pages back to the file as it sees fit; call force() to
+ *  flush them now. One mapping holds at most 2G bytes, 512M globals.
+ *
+ *  A new file starts out zeroed. An existing file keeps its contents and
+ *  is extended if it's too small. A mapping stays valid after close()
+ *  until the buffer is garbage collected.
+ */
+public class MappedGlobals implements AutoCloseable {
+	/** Atomic access to ints in a ByteBuffer; indexes are byte offsets */
+	static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	protected final FileChannel channel;
+	protected final MappedByteBuffer buf;
+	protected final int size;
+
+	public MappedGlobals(Path path, int size) throws IOException {
+		if ( size<0 || size>Integer.MAX_VALUE/4 ) throw new Error("can't map "+size+" globals");
+		this.size = size;
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+								   StandardOpenOption.WRITE);
+		buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size*4L);
+	}
+
+	public int get(int i) { return (int)INTS.getVolatile(buf, offset(i)); }
+
+	public void set(int i, int v) { INTS.setVolatile(buf, offset(i), v); }
+
+	public int getAndAdd(int i, int delta) { return (int)INTS.getAndAdd(buf, offset(i), delta); }
+
+	public boolean compareAndSet(int i, int expected, int v) {
+		return INTS.compareAndSet(buf, offset(i), expected, v);
+	}
+
+	public int size() { return size; }
+
+	/** Byte offset of global i; i<<2 alone wraps for i >= 2^29 and would
+	 *  quietly hit some other global.
+	 */
+	protected int offset(int i) {
+		if ( i<0 || i>=size ) throw new Error("global "+i+" out of range; "+size+" mapped");
+		return i<<2;
+	}
+
+	/** Write changed pages back to the file */
+	public void force() { buf.force(); }
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,144 @@
+package vm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Host functions guest code can call. Register Java static methods,
+ *  or any MethodHandle such as one bound to a JNI native method, then
+ *  set vm.natives. Guest code calls them by registration index:
+ *
+ *  	CALLNATIVE f, n			pop n int args, push f(args)
+ *  	CALLNATIVE_ARRAY f		pop ref, from, n; push f(heap, start, n)
+ *
+ *  Scalar functions take ints (or other primitives, which we cast) and
+ *  return an int, another primitive, or void, which pushes 0. We adapt
+ *  each to take ints and return int when it's registered so calls with
+ *  up to MAX_DIRECT_ARGS args are a single invokeExact on args read
+ *  straight off the operand stack.
+ *
+ *  Array functions have type (int[], int, int)int and get the VM heap's
+ *  backing array plus where guest elements ref[from..from+n-1] start in
+ *  it, so a kernel like sumArray reads guest memory in place with no
+ *  copy. The host must stay inside that slice and not keep the array:
+ *  the heap moves objects when it collects and replaces the array when
+ *  it grows.
+ *
+ *  CALLNATIVE carries its arg count so the verifier knows its stack
+ *  effect without the registry; we check it against the function at
+ *  each call.
+ */
+public class Natives {
+	public static final int MAX_DIRECT_ARGS = 4;
+
+	static final MethodType ARRAY_TYPE = MethodType.methodType(int.class, int[].class, int.class, int.class);
+
+	public static class NativeFunction {
+		public final String name;
+		public final int nargs;
+		public final boolean isArray;
+		/** (int,...)int, (int[])int if nargs > MAX_DIRECT_ARGS, or ARRAY_TYPE */
+		protected final MethodHandle mh;
+
+		NativeFunction(String name, int nargs, boolean isArray, MethodHandle mh) {
+			this.name = name;
+			this.nargs = nargs;
+			this.isArray = isArray;
+			this.mh = mh;
+		}
+
+		/** Call with args stack[first..first+nargs-1] */
+		public int invoke(int[] stack, int first) throws Throwable {
+			switch ( nargs ) {
+				case 0 : return (int)mh.invokeExact();
+				case 1 : return (int)mh.invokeExact(stack[first]);
+				case 2 : return (int)mh.invokeExact(stack[first], stack[first+1]);
+				case 3 : return (int)mh.invokeExact(stack[first], stack[first+1], stack[first+2]);
+				case 4 : return (int)mh.invokeExact(stack[first], stack[first+1], stack[first+2], stack[first+3]);
+				default : return (int)mh.invokeExact(Arrays.copyOfRange(stack, first, first+nargs));
+			}
+		}
+
+		public int invokeArray(int[] a, int start, int n) throws Throwable {
+			return (int)mh.invokeExact(a, start, n);
+		}
+	}
+
+	protected final List<NativeFunction> functions = new ArrayList<NativeFunction>();
+	protected final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+	/** Register public static method name of c; there must be just one */
+	public int register(Class<?> c, String name) {
+		Method found = null;
+		for (Method m : c.getMethods()) {
+			if ( m.getName().equals(name) && Modifier.isStatic(m.getModifiers()) ) {
+				if ( found!=null ) throw new Error(c.getName()+"."+name+" is overloaded; register a MethodHandle");
+				found = m;
+			}
+		}
+		if ( found==null ) throw new Error("no public static method "+c.getName()+"."+name);
+		try {
+			return register(name, MethodHandles.publicLookup().unreflect(found));
+		}
+		catch (IllegalAccessException iae) {
+			throw new Error("can't access "+c.getName()+"."+name, iae);
+		}
+	}
+
+	/** Register mh under name, as an array function if its type is
+	 *  (int[], int, int)int; return its index for CALLNATIVE.
+	 */
+	public int register(String name, MethodHandle mh) {
+		if ( indexes.containsKey(name) ) throw new Error("native "+name+" already registered");
+		MethodType type = mh.type();
+		NativeFunction f;
+		if ( type.equals(ARRAY_TYPE) ) {
+			f = new NativeFunction(name, 3, true, mh);
+		}
+		else {
+			for (Class<?> p : type.parameterList()) {
+				if ( !p.isPrimitive() ) throw new Error("native "+name+" must take ints or (int[], int, int): "+type);
+			}
+			int nargs = type.parameterCount();
+			MethodHandle adapted = mh;
+			if ( type.returnType()==void.class ) {
+				adapted = MethodHandles.filterReturnValue(adapted, MethodHandles.constant(int.class, 0));
+			}
+			else if ( !type.returnType().isPrimitive() ) {
+				throw new Error("native "+name+" must return a primitive or void: "+type);
+			}
+			MethodType ints = MethodType.methodType(int.class, intTypes(nargs));
+			adapted = MethodHandles.explicitCastArguments(adapted, ints);
+			if ( nargs>MAX_DIRECT_ARGS ) adapted = adapted.asSpreader(int[].class, nargs);
+			f = new NativeFunction(name, nargs, false, adapted);
+		}
+		indexes.put(name, functions.size());
+		functions.add(f);
+		return functions.size() - 1;
+	}
+
+	/** Index of native name for CALLNATIVE or -1 */
+	public int index(String name) {
+		return indexes.getOrDefault(name, -1);
+	}
+
+	public NativeFunction get(int i) {
+		if ( i<0 || i>=functions.size() ) throw new Error("no native function "+i);
+		return functions.get(i);
+	}
+
+	public int size() { return functions.size(); }
+
+	private static Class<?>[] intTypes(int n) {
+		Class<?>[] types = new Class<?>[n];
+		Arrays.fill(types, int.class);
+		return types;
+	}
+}
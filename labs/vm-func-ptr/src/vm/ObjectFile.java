@@ -0,0 +1,188 @@
+package vm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Read and write programs as binary object files:
+ *
+ *  	header:
+ *  		int magic			"VMOF"
+ *  		int version
+ *  		int startip
+ *  		int nglobals
+ *  		int nconstants		strings in the constant pool
+ *  		int nfuncs			entries in the function table
+ *  		int codeSize		code memory size in words
+ *  	constant pool:			nconstants strings, each
+ *  		short length		in bytes, unsigned; at most MAX_NAME_LENGTH
+ *  		byte[length]		UTF-8
+ *  	function table:			nfuncs entries, each
+ *  		int name			index into constant pool
+ *  		int nargs
+ *  		int nlocals
+ *  		int address
+ *  	code section:			codeSize words as variable-length ints
+ *
+ *  Opcodes and most operands are small so each code word is written as
+ *  a zigzag-encoded, little-endian base-128 varint: 7 bits per byte with
+ *  the high bit set on all but the last byte. Most words take 1 byte
+ *  instead of 4.
+ *
+ *  We load by memory-mapping the file and decoding straight out of the
+ *  mapped buffer into code memory; there's no text to parse and no
+ *  intermediate copy. The VM addresses code by word so the variable
+ *  width code section is expanded to an int[] in that one pass.
+ */
+public class ObjectFile {
+	public static final int MAGIC = 0x564D4F46; // "VMOF"
+	public static final int VERSION = 1;
+	public static final int MAX_NAME_LENGTH = 0xFFFF; // UTF-8 bytes in an unsigned short
+
+	public static void write(Program program, Path path) throws IOException {
+		ByteBuffer buf = encode(program);
+		try ( FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+													 StandardOpenOption.WRITE,
+													 StandardOpenOption.TRUNCATE_EXISTING) )
+		{
+			while ( buf.hasRemaining() ) channel.write(buf);
+		}
+	}
+
+	public static Program load(Path path) throws IOException {
+		try ( FileChannel channel = FileChannel.open(path, StandardOpenOption.READ) ) {
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return decode(buf);
+		}
+	}
+
+	public static ByteBuffer encode(Program program) {
+		FuncMetaData[] funcs = program.metadata!=null ? program.metadata : new FuncMetaData[0];
+		List<byte[]> constants = new ArrayList<byte[]>();
+		int size = 7*4;
+		for (FuncMetaData f : funcs) {
+			byte[] name = f.name.getBytes(StandardCharsets.UTF_8);
+			if ( name.length>MAX_NAME_LENGTH ) {
+				throw new Error("function name "+f.name.substring(0, 20)+"... is "+name.length+
+								" UTF-8 bytes; max is "+MAX_NAME_LENGTH);
+			}
+			constants.add(name);
+			size += 2 + name.length + 4*4;
+		}
+		size += program.code.length * 5; // worst case varint
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(program.startip);
+		buf.putInt(program.nglobals);
+		buf.putInt(constants.size());
+		buf.putInt(funcs.length);
+		buf.putInt(program.code.length);
+		for (byte[] s : constants) {
+			buf.putShort((short)s.length);
+			buf.put(s);
+		}
+		for (int i = 0; i<funcs.length; i++) {
+			buf.putInt(i); // name is constant i
+			buf.putInt(funcs[i].nargs);
+			buf.putInt(funcs[i].nlocals);
+			buf.putInt(funcs[i].address);
+		}
+		for (int word : program.code) putVarInt(buf, word);
+		buf.flip();
+		return buf;
+	}
+
+	/** Decode an object file, checking every count, index, and size
+	 *  against what's left in buf so a corrupt file is an Error saying
+	 *  what's wrong rather than a buffer or array exception or a huge
+	 *  allocation.
+	 */
+	public static Program decode(ByteBuffer buf) {
+		need(buf, 7*4, "header");
+		if ( buf.getInt()!=MAGIC ) throw new Error("not a VM object file");
+		int version = buf.getInt();
+		if ( version!=VERSION ) throw new Error("unsupported object file version "+version);
+		int startip = buf.getInt();
+		int nglobals = buf.getInt();
+		int nconstants = buf.getInt();
+		int nfuncs = buf.getInt();
+		int codeSize = buf.getInt();
+		if ( nglobals<0 ) throw corrupt(buf, "negative globals count "+nglobals);
+		if ( nconstants<0 || nconstants>buf.remaining()/2 ) {
+			throw corrupt(buf, nconstants+" constants can't fit in "+buf.remaining()+" bytes");
+		}
+		String[] constants = new String[nconstants];
+		for (int i = 0; i<nconstants; i++) {
+			need(buf, 2, "constant "+i+" length");
+			int length = buf.getShort() & 0xFFFF;
+			need(buf, length, "constant "+i);
+			byte[] s = new byte[length];
+			buf.get(s);
+			constants[i] = new String(s, StandardCharsets.UTF_8);
+		}
+		if ( nfuncs<0 || nfuncs>buf.remaining()/(4*4) ) {
+			throw corrupt(buf, nfuncs+" functions can't fit in "+buf.remaining()+" bytes");
+		}
+		if ( codeSize<0 || codeSize>buf.remaining() - nfuncs*4*4 ) { // every word takes at least 1 byte
+			throw corrupt(buf, codeSize+" words of code can't fit in "+buf.remaining()+" bytes");
+		}
+		if ( startip<0 || startip>=codeSize ) throw corrupt(buf, "start address "+startip+" outside code");
+		FuncMetaData[] metadata = new FuncMetaData[nfuncs];
+		for (int i = 0; i<nfuncs; i++) {
+			int name = buf.getInt();
+			int nargs = buf.getInt();
+			int nlocals = buf.getInt();
+			int address = buf.getInt();
+			if ( name<0 || name>=nconstants ) throw corrupt(buf, "function "+i+" name "+name+" not a constant");
+			if ( nargs<0 || nlocals<0 ) throw corrupt(buf, "function "+constants[name]+" has negative args or locals");
+			if ( address<0 || address>=codeSize ) {
+				throw corrupt(buf, "function "+constants[name]+" address "+address+" outside code");
+			}
+			metadata[i] = new FuncMetaData(constants[name], nargs, nlocals, address);
+		}
+		int[] code = new int[codeSize];
+		for (int i = 0; i<codeSize; i++) code[i] = getVarInt(buf);
+		return new Program(code, metadata, startip, nglobals);
+	}
+
+	protected static void need(ByteBuffer buf, int n, String what) {
+		if ( buf.remaining()<n ) {
+			throw corrupt(buf, what+" needs "+n+" bytes but only "+buf.remaining()+" left");
+		}
+	}
+
+	protected static Error corrupt(ByteBuffer buf, String msg) {
+		return new Error("corrupt object file at byte "+buf.position()+": "+msg);
+	}
+
+	public static void putVarInt(ByteBuffer buf, int v) {
+		int z = (v << 1) ^ (v >> 31); // zigzag so small negatives are small too
+		while ( (z & ~0x7F)!=0 ) {
+			buf.put((byte)((z & 0x7F) | 0x80));
+			z >>>= 7;
+		}
+		buf.put((byte)z);
+	}
+
+	/** Read a varint of at most 5 bytes, the most 32 bits needs */
+	public static int getVarInt(ByteBuffer buf) {
+		int z = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if ( !buf.hasRemaining() ) throw corrupt(buf, "code ends in the middle of a word");
+			b = buf.get();
+			if ( shift==28 && (b & 0xF0)!=0 ) throw corrupt(buf, "varint longer than 32 bits");
+			z |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ( b<0 );
+		return (z >>> 1) ^ -(z & 1);
+	}
+}
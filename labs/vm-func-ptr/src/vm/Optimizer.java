@@ -0,0 +1,296 @@
+package vm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import static vm.Bytecode.BR;
+import static vm.Bytecode.BRF;
+import static vm.Bytecode.BRT;
+import static vm.Bytecode.FUNCIDX;
+import static vm.Bytecode.GLOAD;
+import static vm.Bytecode.GLOAD_GLOAD_ILT_BRF;
+import static vm.Bytecode.HALT;
+import static vm.Bytecode.IADD;
+import static vm.Bytecode.ICONST;
+import static vm.Bytecode.IEQ;
+import static vm.Bytecode.ILT;
+import static vm.Bytecode.IMUL;
+import static vm.Bytecode.ISUB;
+import static vm.Bytecode.LOAD;
+import static vm.Bytecode.LOAD_ICONST_ILT_BRF;
+import static vm.Bytecode.POP;
+import static vm.Bytecode.RET;
+import static vm.Bytecode.TAILCALL;
+
+/** An ahead-of-time optimizer for the sort of code a simple compiler
+ *  generates. We repeat these until nothing changes:
+ *
+ *  	ICONST a; ICONST b; op				=> ICONST (a op b) for iadd..ieq
+ *  	ICONST 1; IMUL, ICONST 0; IADD|ISUB	=> nothing
+ *  	ICONST k; BRT|BRF addr				=> BR addr or nothing
+ *  	ICONST|LOAD|GLOAD|FUNCIDX x; POP	=> nothing
+ *  	BR next								=> nothing
+ *  	branch to BR addr					=> branch to addr
+ *  	code no path reaches				=> nothing
+ *
+ *  Each pass marks instructions deleted or rewrites them in place to
+ *  something no longer, then compact() squeezes out the deleted ones and
+ *  relocates branch targets, function addresses, and the start address
+ *  as Peephole does. A reference to a deleted instruction moves to the
+ *  next one we keep, which is right because everything we delete is
+ *  either unreachable or has no effect. Like Peephole we never rewrite
+ *  across a branch target. Run us before Peephole so fusing sees the
+ *  simplified code. The original code and metadata are left untouched.
+ */
+public class Optimizer {
+	public int[] code;
+	public FuncMetaData[] metadata;
+	public int startip;
+
+	// stats
+	public int folded = 0;		// constant and identity rewrites
+	public int threaded = 0;	// branches redirected past a BR
+	public int removed = 0;		// dead or useless instructions deleted
+
+	protected boolean[] deleted;	// by instruction address in code
+	protected boolean[] isTarget;
+
+	public Optimizer(int[] code, FuncMetaData[] metadata, int startip) {
+		this.code = code.clone();
+		this.startip = startip;
+		if ( metadata!=null ) {
+			this.metadata = new FuncMetaData[metadata.length];
+			for (int i = 0; i<metadata.length; i++) {
+				FuncMetaData f = metadata[i];
+				this.metadata[i] = new FuncMetaData(f.name, f.nargs, f.nlocals, f.address);
+			}
+		}
+		boolean changed;
+		do {
+			deleted = new boolean[this.code.length];
+			isTarget = targets();
+			changed = threadJumps();
+			changed |= fold();
+			changed |= removeUnreachable();
+			if ( changed ) compact();
+		} while ( changed );
+	}
+
+	/** Point branches at the final destination of any chain of BRs */
+	protected boolean threadJumps() {
+		boolean changed = false;
+		for (int ip = 0; ip<code.length; ip = next(ip)) {
+			int a = addressOperand(code[ip]);
+			if ( a<0 || ip+a>=code.length ) continue;
+			int target = code[ip+a];
+			int hops = 0;
+			while ( isBR(target) && code[target+1]!=target && hops<code.length ) {
+				target = code[target+1];
+				hops++;
+			}
+			if ( target!=code[ip+a] ) {
+				code[ip+a] = target;
+				threaded++;
+				changed = true;
+			}
+			if ( code[ip]==BR && target==ip+2 ) {
+				deleted[ip] = true;
+				removed++;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	protected boolean fold() {
+		boolean changed = false;
+		for (int ip = 0; ip<code.length; ip = next(ip)) {
+			if ( deleted[ip] ) continue;
+			if ( code[ip]!=ICONST ) {
+				if ( isPush(code[ip]) && isPlain(next(ip), POP) ) {
+					delete(ip, 2);
+					changed = true;
+				}
+				continue;
+			}
+			int k = code[ip+1];
+			int b = ip + 2;
+			if ( isPlain(b, ICONST) && isPlain(b+2, IADD, ISUB, IMUL, ILT, IEQ) ) {
+				code[ip+1] = eval(code[b+2], k, code[b+1]);
+				delete(b, 2);
+				folded++;
+				changed = true;
+			}
+			else if ( (k==1 && isPlain(b, IMUL)) || (k==0 && isPlain(b, IADD, ISUB)) ) {
+				delete(ip, 2);
+				folded++;
+				changed = true;
+			}
+			else if ( isPlain(b, BRT, BRF) ) {
+				boolean taken = code[b]==BRT ? k==VM.TRUE : k==VM.FALSE;
+				if ( taken ) {
+					code[ip] = BR;		// same length as ICONST k
+					code[ip+1] = code[b+1];
+					delete(b, 1);
+				}
+				else {
+					delete(ip, 2);
+				}
+				folded++;
+				changed = true;
+			}
+			else if ( isPlain(b, POP) ) {
+				delete(ip, 2);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/** Delete instructions no path from startip or a function reaches */
+	protected boolean removeUnreachable() {
+		boolean[] reached = new boolean[code.length];
+		Deque<Integer> work = new ArrayDeque<Integer>();
+		work.push(startip);
+		if ( metadata!=null ) {
+			for (FuncMetaData f : metadata) work.push(f.address);
+		}
+		while ( !work.isEmpty() ) {
+			int ip = work.pop();
+			if ( ip<0 || ip>=code.length || reached[ip] ) continue;
+			reached[ip] = true;
+			if ( deleted[ip] ) {		// no effect so just falls through
+				work.push(next(ip));
+				continue;
+			}
+			int opcode = code[ip];
+			if ( opcode<=0 || opcode>=Bytecode.instructions.length ) continue; // fails at runtime
+			int a = addressOperand(opcode);
+			if ( a>0 && ip+a<code.length ) work.push(code[ip+a]);
+			if ( opcode!=BR && opcode!=RET && opcode!=HALT && opcode!=TAILCALL ) work.push(next(ip));
+		}
+		boolean changed = false;
+		for (int ip = 0; ip<code.length; ip = next(ip)) {
+			if ( !reached[ip] && !deleted[ip] ) {
+				deleted[ip] = true;
+				removed++;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/** Squeeze out deleted instructions and relocate addresses */
+	protected void compact() {
+		int[] newAddress = new int[code.length+1];
+		boolean[] isInstr = new boolean[code.length];
+		int[] out = new int[code.length];
+		List<Integer> addrOperands = new ArrayList<Integer>(); // in out[]
+		int n = 0;
+		for (int ip = 0; ip<code.length; ip = next(ip)) {
+			newAddress[ip] = n;
+			isInstr[ip] = true;
+			if ( deleted[ip] ) continue;
+			int len = Math.min(1 + nargs(code[ip]), code.length - ip);
+			System.arraycopy(code, ip, out, n, len);
+			int a = addressOperand(code[ip]);
+			if ( a>0 ) addrOperands.add(n+a);
+			n += len;
+		}
+		newAddress[code.length] = n;
+		// deleted instructions and operands map to the next instruction we kept
+		for (int ip = code.length-1; ip>=0; ip--) {
+			if ( !isInstr[ip] || deleted[ip] ) newAddress[ip] = newAddress[ip+1];
+		}
+		for (int a : addrOperands) out[a] = relocate(newAddress, out[a]);
+		code = Arrays.copyOf(out, n);
+		startip = relocate(newAddress, startip);
+		if ( metadata!=null ) {
+			for (FuncMetaData f : metadata) f.address = relocate(newAddress, f.address);
+		}
+	}
+
+	protected static int relocate(int[] newAddress, int addr) {
+		if ( addr<0 || addr>=newAddress.length ) throw new Error("can't relocate address "+addr);
+		return newAddress[addr];
+	}
+
+	/** Mark every address something can jump to */
+	protected boolean[] targets() {
+		boolean[] isTarget = new boolean[code.length+1];
+		for (int ip = 0; ip<code.length; ip = next(ip)) {
+			int a = addressOperand(code[ip]);
+			if ( a>0 && ip+a<code.length ) {
+				int addr = code[ip+a];
+				if ( addr>=0 && addr<isTarget.length ) isTarget[addr] = true;
+			}
+		}
+		if ( metadata!=null ) {
+			for (FuncMetaData f : metadata) isTarget[f.address] = true;
+		}
+		isTarget[startip] = true;
+		return isTarget;
+	}
+
+	/** Is there a live instruction at ip, that isn't a branch target, with one of opcodes? */
+	protected boolean isPlain(int ip, int... opcodes) {
+		if ( ip>=code.length || deleted[ip] || isTarget[ip] ) return false;
+		for (int op : opcodes) {
+			if ( code[ip]==op ) return ip + 1 + nargs(op) <= code.length;
+		}
+		return false;
+	}
+
+	/** Delete n instructions starting with the one at ip */
+	protected void delete(int ip, int n) {
+		for (int i = 1; i<=n; i++) {
+			deleted[ip] = true;
+			removed++;
+			ip = next(ip);
+		}
+	}
+
+	protected boolean isBR(int ip) {
+		return ip>=0 && ip+1<code.length && code[ip]==BR;
+	}
+
+	protected int next(int ip) {
+		return ip + 1 + nargs(code[ip]);
+	}
+
+	protected static boolean isPush(int opcode) {
+		return opcode==LOAD || opcode==GLOAD || opcode==FUNCIDX;
+	}
+
+	protected static int eval(int opcode, int a, int b) {
+		switch ( opcode ) {
+			case IADD : return a + b;
+			case ISUB : return a - b;
+			case IMUL : return a * b;
+			case ILT  : return a < b ? VM.TRUE : VM.FALSE;
+			case IEQ  : return a == b ? VM.TRUE : VM.FALSE;
+		}
+		throw new Error("can't fold "+Bytecode.instructions[opcode].name);
+	}
+
+	/** Offset of the operand holding a branch address or -1 if none */
+	protected static int addressOperand(int opcode) {
+		switch ( opcode ) {
+			case BR :
+			case BRT :
+			case BRF :
+				return 1;
+			case LOAD_ICONST_ILT_BRF :
+			case GLOAD_GLOAD_ILT_BRF :
+				return 3;
+		}
+		return -1;
+	}
+
+	protected static int nargs(int opcode) {
+		return Peephole.nargs(opcode);
+	}
+}
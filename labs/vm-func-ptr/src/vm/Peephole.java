@@ -0,0 +1,172 @@
+package vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static vm.Bytecode.BR;
+import static vm.Bytecode.BRF;
+import static vm.Bytecode.BRT;
+import static vm.Bytecode.CALL;
+import static vm.Bytecode.GINC;
+import static vm.Bytecode.GLOAD;
+import static vm.Bytecode.GLOAD_GLOAD_ILT_BRF;
+import static vm.Bytecode.GSTORE;
+import static vm.Bytecode.IADD;
+import static vm.Bytecode.ICONST;
+import static vm.Bytecode.ILT;
+import static vm.Bytecode.ISUB;
+import static vm.Bytecode.LOAD;
+import static vm.Bytecode.LOAD_ICONST_ILT_BRF;
+import static vm.Bytecode.LOAD_ICONST_ISUB_CALL;
+import static vm.Bytecode.RET;
+import static vm.Bytecode.TAILCALL;
+
+/** A load-time peephole pass that rewrites common instruction sequences
+ *  into superinstructions:
+ *
+ *  	LOAD n; ICONST k; ILT; BRF addr		=> LOAD_ICONST_ILT_BRF n, k, addr
+ *  	GLOAD a; GLOAD b; ILT; BRF addr		=> GLOAD_GLOAD_ILT_BRF a, b, addr
+ *  	GLOAD a; ICONST k; IADD; GSTORE a	=> GINC a, k
+ *  	LOAD n; ICONST k; ISUB; CALL f		=> LOAD_ICONST_ISUB_CALL n, k, f
+ *  	CALL f; RET							=> TAILCALL f; RET
+ *
+ *  The RET after a TAILCALL stays in case something branches to it.
+ *  We never fuse across a branch target. Fused code is shorter so we
+ *  relocate branch targets, function addresses, and the start address.
+ *  The original code and metadata are left untouched.
+ */
+public class Peephole {
+	public int[] code;
+	public FuncMetaData[] metadata;
+	public int startip;
+
+	/** Map old instruction address to new; -1 for operands and
+	 *  instructions folded into a superinstruction.
+	 */
+	protected int[] newAddress;
+
+	public Peephole(int[] code, FuncMetaData[] metadata, int startip) {
+		boolean[] isTarget = targets(code, metadata, startip);
+		newAddress = new int[code.length+1];
+		Arrays.fill(newAddress, -1);
+		int[] out = new int[code.length];
+		List<Integer> addrOperands = new ArrayList<Integer>(); // in out[]
+		int ip = 0;
+		int n = 0;
+		while ( ip<code.length ) {
+			newAddress[ip] = n;
+			int opcode = code[ip];
+			if ( matches(code, isTarget, ip, LOAD, ICONST, ILT, BRF) ) {
+				n = emit(out, n, LOAD_ICONST_ILT_BRF, code[ip+1], code[ip+3], code[ip+6]);
+				addrOperands.add(n-1);
+				ip += 7;
+			}
+			else if ( matches(code, isTarget, ip, GLOAD, GLOAD, ILT, BRF) ) {
+				n = emit(out, n, GLOAD_GLOAD_ILT_BRF, code[ip+1], code[ip+3], code[ip+6]);
+				addrOperands.add(n-1);
+				ip += 7;
+			}
+			else if ( matches(code, isTarget, ip, GLOAD, ICONST, IADD, GSTORE) &&
+					  code[ip+1]==code[ip+6] )
+			{
+				n = emit(out, n, GINC, code[ip+1], code[ip+3]);
+				ip += 7;
+			}
+			else if ( matches(code, isTarget, ip, LOAD, ICONST, ISUB, CALL) && !isTailCall(code, ip+6) ) {
+				n = emit(out, n, LOAD_ICONST_ISUB_CALL, code[ip+1], code[ip+3], code[ip+6]);
+				ip += 7;
+			}
+			else if ( isTailCall(code, ip) ) {
+				n = emit(out, n, TAILCALL, code[ip+1]);
+				ip += 2;
+			}
+			else {
+				int len = 1 + nargs(opcode);
+				len = Math.min(len, code.length - ip);
+				System.arraycopy(code, ip, out, n, len);
+				if ( opcode==BR || opcode==BRT || opcode==BRF ) addrOperands.add(n+1);
+				n += len;
+				ip += len;
+			}
+		}
+		newAddress[code.length] = n; // falling off the end
+		for (int a : addrOperands) out[a] = relocate(out[a]);
+		this.code = Arrays.copyOf(out, n);
+		this.startip = relocate(startip);
+		if ( metadata!=null ) {
+			this.metadata = new FuncMetaData[metadata.length];
+			for (int i = 0; i<metadata.length; i++) {
+				FuncMetaData f = metadata[i];
+				this.metadata[i] = new FuncMetaData(f.name, f.nargs, f.nlocals, relocate(f.address));
+			}
+		}
+	}
+
+	/** Rewrite every CALL f; RET as TAILCALL f; RET without fusing
+	 *  anything else. Code size doesn't change so there's nothing to relocate.
+	 */
+	public static int[] tailCalls(int[] code) {
+		int[] out = code.clone();
+		int ip = 0;
+		while ( ip<code.length ) {
+			if ( isTailCall(code, ip) ) out[ip] = TAILCALL;
+			ip += 1 + nargs(code[ip]);
+		}
+		return out;
+	}
+
+	/** Is there a CALL at ip immediately followed by RET? */
+	protected static boolean isTailCall(int[] code, int ip) {
+		return ip+2<code.length && code[ip]==CALL && code[ip+2]==RET;
+	}
+
+	public int relocate(int addr) {
+		if ( addr<0 || addr>=newAddress.length || newAddress[addr]<0 ) {
+			throw new Error("can't relocate address "+addr);
+		}
+		return newAddress[addr];
+	}
+
+	/** Do the instructions starting at ip match opcodes without a jump
+	 *  into the middle of the sequence?  All opcodes but the last have
+	 *  at most one operand.
+	 */
+	protected static boolean matches(int[] code, boolean[] isTarget, int ip, int... opcodes) {
+		for (int i = 0; i<opcodes.length; i++) {
+			if ( ip>=code.length || code[ip]!=opcodes[i] ) return false;
+			if ( i>0 && isTarget[ip] ) return false;
+			ip += 1 + nargs(opcodes[i]);
+		}
+		return ip<=code.length;
+	}
+
+	protected static int emit(int[] out, int n, int... instr) {
+		for (int v : instr) out[n++] = v;
+		return n;
+	}
+
+	/** Mark every address something can jump to */
+	protected static boolean[] targets(int[] code, FuncMetaData[] metadata, int startip) {
+		boolean[] isTarget = new boolean[code.length+1];
+		int ip = 0;
+		while ( ip<code.length ) {
+			int opcode = code[ip];
+			if ( (opcode==BR || opcode==BRT || opcode==BRF) && ip+1<code.length ) {
+				int addr = code[ip+1];
+				if ( addr>=0 && addr<isTarget.length ) isTarget[addr] = true;
+			}
+			ip += 1 + nargs(opcode);
+		}
+		if ( metadata!=null ) {
+			for (FuncMetaData f : metadata) isTarget[f.address] = true;
+		}
+		isTarget[startip] = true;
+		return isTarget;
+	}
+
+	protected static int nargs(int opcode) {
+		if ( opcode<=0 || opcode>=Bytecode.instructions.length ) return 0;
+		return Bytecode.instructions[opcode].n;
+	}
+}
@@ -0,0 +1,193 @@
+package vm;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/** A sampling profiler for guest code. A daemon thread wakes up every
+ *  interval and reads the VM's registers and frames without stopping
+ *  it, walking the fp chain to get the call stack:
+ *
+ *  	frames[fp+FRAME_FUNC]		function index of each frame
+ *  	frames[fp+FRAME_CALLERFP]	next frame out
+ *
+ *  The VM does no work at all for the profiler; all the cost is on the
+ *  sampling thread. The reads are racy so a sample can catch the VM in
+ *  the middle of a call or return. We check every index as we walk and
+ *  drop samples that don't make sense.
+ *
+ *  Samples are aggregated into a flat profile (self and total samples
+ *  per function, plus hot instructions) and into collapsed stacks, one
+ *  line per distinct stack, which flamegraph.pl turns into a flame graph:
+ *
+ *  	main;fibonacci;fibonacci;fibonacci 1234
+ *
+ *  Functions compiled by the JIT don't push frames so their time shows
+ *  up in their caller. In threaded mode vm.ip is only updated at calls
+ *  so instruction counts are coarse; function attribution isn't affected.
+ */
+public class Profiler {
+	public static final long DEFAULT_INTERVAL_MICROS = 1000;
+	public static final int MAX_DEPTH = 256;	// keep innermost frames of deeper stacks
+
+	protected final VM vm;
+	protected final long intervalNanos;
+	protected Thread sampler;
+	protected volatile boolean running;
+
+	// aggregated samples; only touched by the sampler thread until stop()
+	protected long samples;
+	protected long dropped;
+	protected final long[] selfSamples;		// leaf function; last entry is top level
+	protected final long[] totalSamples;	// function anywhere on the stack
+	protected final long[] ipSamples;		// by address of instruction start
+	protected final int[] instrStart;		// address -> start of its instruction
+	protected final Map<String, Long> stacks = new HashMap<String, Long>();
+
+	// scratch for one sample
+	private final int[] funcs = new int[MAX_DEPTH];
+	private final boolean[] seen;
+	private final StringBuilder buf = new StringBuilder();
+
+	public Profiler(VM vm) { this(vm, DEFAULT_INTERVAL_MICROS); }
+
+	public Profiler(VM vm, long intervalMicros) {
+		this.vm = vm;
+		this.intervalNanos = TimeUnit.MICROSECONDS.toNanos(intervalMicros);
+		int nfuncs = vm.metadata!=null ? vm.metadata.length : 0;
+		selfSamples = new long[nfuncs+1];
+		totalSamples = new long[nfuncs+1];
+		seen = new boolean[nfuncs+1];
+		ipSamples = new long[vm.code.length];
+		instrStart = new int[vm.code.length];
+		int ip = 0;
+		while ( ip<vm.code.length ) {		// vm.ip can point at an operand
+			int opcode = vm.code[ip];
+			int n = opcode>0 && opcode<Bytecode.instructions.length ? Bytecode.instructions[opcode].n : 0;
+			for (int i = ip; i<=ip+n && i<vm.code.length; i++) instrStart[i] = ip;
+			ip += 1 + n;
+		}
+	}
+
+	public void start() {
+		running = true;
+		sampler = new Thread(() -> {
+			while ( running ) {
+				LockSupport.parkNanos(intervalNanos);
+				sample();
+			}
+		}, "vm-profiler");
+		sampler.setDaemon(true);
+		sampler.start();
+	}
+
+	/** Stop sampling and wait for the sampler so results are safe to read */
+	public void stop() {
+		running = false;
+		try {
+			sampler.join();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	protected void sample() {
+		int ip = vm.ip;
+		int callsp = vm.callsp;
+		int fp = vm.fp;
+		int[] frames = vm.frames;
+		int nfuncs = selfSamples.length - 1;
+		int depth = Math.min(callsp+1, MAX_DEPTH);
+		// walk out from the innermost frame
+		for (int i = depth-1; i>=0; i--) {
+			if ( fp<VM.FRAME_HEADER_SIZE || fp>=frames.length ) { dropped++; return; }
+			int findex = frames[fp+VM.FRAME_FUNC];
+			if ( findex<0 || findex>=nfuncs ) { dropped++; return; }
+			funcs[i] = findex;
+			fp = frames[fp+VM.FRAME_CALLERFP];
+		}
+		samples++;
+		if ( ip>=0 && ip<ipSamples.length ) ipSamples[instrStart[ip]]++;
+		selfSamples[depth>0 ? funcs[depth-1] : nfuncs]++;
+
+		buf.setLength(0);
+		buf.append(topLevelName());
+		if ( callsp+1>depth ) buf.append(";...");
+		totalSamples[nfuncs]++;
+		for (int i = 0; i<depth; i++) {
+			int findex = funcs[i];
+			if ( !seen[findex] ) {		// count recursive functions once
+				seen[findex] = true;
+				totalSamples[findex]++;
+			}
+			buf.append(';').append(vm.metadata[findex].name);
+		}
+		for (int i = 0; i<depth; i++) seen[funcs[i]] = false;
+		stacks.merge(buf.toString(), 1L, Long::sum);
+	}
+
+	/** Name for code outside of any call: the function at startip if any */
+	protected String topLevelName() {
+		if ( vm.metadata!=null ) {
+			for (FuncMetaData f : vm.metadata) {
+				if ( f.address==vm.startip ) return f.name;
+			}
+		}
+		return "main";
+	}
+
+	public long getSamples() { return samples; }
+
+	public long getDropped() { return dropped; }
+
+	/** Print functions by self samples then the hottest instructions */
+	public void dumpFlatProfile(PrintStream out) {
+		int nfuncs = selfSamples.length - 1;
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i<=nfuncs; i++) {
+			if ( totalSamples[i]>0 ) order.add(i);
+		}
+		order.sort((a, b) -> Long.compare(selfSamples[b], selfSamples[a]));
+		out.printf("%d samples, %d dropped\n", samples, dropped);
+		out.printf("%7s %7s  %s\n", "self%", "total%", "function");
+		for (int i : order) {
+			String name = i<nfuncs ? vm.metadata[i].name : "("+topLevelName()+" top level)";
+			out.printf("%6.1f%% %6.1f%%  %s\n", percent(selfSamples[i]), percent(totalSamples[i]), name);
+		}
+		List<Integer> hot = new ArrayList<Integer>();
+		for (int ip = 0; ip<ipSamples.length; ip++) {
+			if ( ipSamples[ip]>0 ) hot.add(ip);
+		}
+		hot.sort((a, b) -> Long.compare(ipSamples[b], ipSamples[a]));
+		out.println("hot instructions:");
+		for (int ip : hot.subList(0, Math.min(10, hot.size()))) {
+			int opcode = vm.code[ip];
+			String name = opcode>0 && opcode<Bytecode.instructions.length ?
+				Bytecode.instructions[opcode].name : "?";
+			out.printf("%6.1f%%  %04d: %s\n", percent(ipSamples[ip]), ip, name);
+		}
+	}
+
+	/** Write collapsed stacks for flamegraph.pl, one "a;b;c count" per line */
+	public void writeCollapsedStacks(Path path) throws IOException {
+		try ( PrintWriter w = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8)) ) {
+			for (Map.Entry<String, Long> e : stacks.entrySet()) {
+				w.println(e.getKey()+" "+e.getValue());
+			}
+		}
+	}
+
+	private double percent(long n) {
+		return samples>0 ? 100.0 * n / samples : 0;
+	}
+}
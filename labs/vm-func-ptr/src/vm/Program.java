@@ -0,0 +1,238 @@
+package vm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/** The immutable part of a loaded program: code memory, function
+ *  metadata, where to start, and how many globals it needs. Any number
+ *  of VMs, on any number of threads, can share one Program; each VM
+ *  holds its own registers, stacks, and (usually) globals.
+ *
+ *  Anything we derive from the code and can share is computed here
+ *  once, such as the threaded code handlers. Don't modify code or
+ *  metadata after creating a Program.
+ */
+public class Program {
+	public final int[] code;
+	public final FuncMetaData[] metadata;
+	public final int startip;
+	public final int nglobals;
+
+	/** callidxSite[a] numbers the CALLIDX at address a 0, 1, ... so VMs
+	 *  can size their inline caches by call site, not code size; null if
+	 *  code has no CALLIDX.
+	 */
+	protected final int[] callidxSite;
+	public final int ncallidxSites;
+
+	/** Max operand stack depth of each function, like the JVM's
+	 *  max_stack, counted from the stack height on entry (args have
+	 *  already moved into the frame). VM.call() makes sure this much
+	 *  stack is available so pushes inside the function need no checks.
+	 */
+	public final int[] maxStack;
+
+	/** Max operand stack depth of the code starting at startip */
+	public int mainMaxStack;
+
+	/** Args taken by every function a FUNCIDX points at; set by verify(),
+	 *  -1 if there are none. The verifier can't prove a CALLIDX's index
+	 *  came from a FUNCIDX so the VM checks each one against this.
+	 */
+	public int callidxNArgs = -1;
+
+	/** Set by verify(); VMs skip defensive checks for verified programs */
+	public volatile boolean verified;
+
+	// lazily-built threaded code; handlers hold no per-VM state
+	protected ThreadedCode.Handler[] handlers;
+	protected ThreadedCode.Handler[] atomicHandlers;
+	protected ThreadedCode.Handler[] mappedHandlers;
+
+	public Program(int[] code, FuncMetaData[] metadata, int startip, int nglobals) {
+		this.code = code;
+		this.metadata = metadata;
+		this.startip = startip;
+		this.nglobals = nglobals;
+		this.callidxSite = callidxSites(code);
+		int nsites = 0;
+		if ( callidxSite!=null ) {
+			for (int s : callidxSite) nsites = Math.max(nsites, s+1);
+		}
+		this.ncallidxSites = nsites;
+		int nfuncs = metadata!=null ? metadata.length : 0;
+		int minArgs = nfuncs>0 ? Integer.MAX_VALUE : 0;
+		for (int i = 0; i<nfuncs; i++) minArgs = Math.min(minArgs, metadata[i].nargs);
+		int[] heights = new int[code.length];	// shared by all walks
+		Arrays.fill(heights, -1);
+		maxStack = new int[nfuncs];
+		for (int i = 0; i<nfuncs; i++) {
+			maxStack[i] = maxStack(code, metadata, metadata[i].address, minArgs, heights);
+		}
+		mainMaxStack = maxStack(code, metadata, startip, minArgs, heights);
+	}
+
+	/** Run the Verifier over this program, throwing an Error listing
+	 *  everything wrong with it. On success, tighten maxStack with the
+	 *  verifier's exact numbers and mark the program verified.
+	 */
+	public Program verify() {
+		Verifier v = new Verifier(this);
+		if ( !v.verify() ) {
+			throw new Error("program failed verification:\n\t"+String.join("\n\t", v.errors));
+		}
+		System.arraycopy(v.maxStack, 0, maxStack, 0, maxStack.length);
+		mainMaxStack = v.mainMaxStack;
+		callidxNArgs = v.callidxNArgs;
+		verified = true;
+		return this;
+	}
+
+	/** Threaded code handlers; if atomicGlobals, the handlers access
+	 *  globals atomically so VMs can share one globals array.
+	 */
+	public synchronized ThreadedCode.Handler[] handlers(boolean atomicGlobals) {
+		if ( atomicGlobals ) {
+			if ( atomicHandlers==null ) atomicHandlers = ThreadedCode.decode(code, true);
+			return atomicHandlers;
+		}
+		if ( handlers==null ) handlers = ThreadedCode.decode(code, false);
+		return handlers;
+	}
+
+	/** Threaded code handlers that access globals in a VM's MappedGlobals */
+	public synchronized ThreadedCode.Handler[] mappedHandlers() {
+		if ( mappedHandlers==null ) mappedHandlers = ThreadedCode.decode(code, true, true);
+		return mappedHandlers;
+	}
+
+	/** Walk all paths from address tracking the operand stack height and
+	 *  return the highest height reached. Callees aren't included; each
+	 *  CALL checks for its own callee. Each instruction is visited once,
+	 *  at the first height we reach it with. For well-formed code the
+	 *  height at a merge point is the same along every path so that's
+	 *  exact. We don't know which function a CALLIDX calls so assume it
+	 *  pops the fewest args of any function, which can only overestimate.
+	 *  heights must be all -1 and we leave it that way so one array serves
+	 *  every function without clearing all of code memory each time.
+	 */
+	protected static int maxStack(int[] code, FuncMetaData[] metadata, int address,
+								  int minArgs, int[] heights)
+	{
+		Deque<Integer> work = new ArrayDeque<Integer>();
+		Deque<Integer> visited = new ArrayDeque<Integer>();
+		int max = 0;
+		flow(heights, work, address, 0);
+		while ( !work.isEmpty() ) {
+			int ip = work.pop();
+			visited.push(ip);
+			int h = heights[ip];
+			int opcode = code[ip];
+			if ( opcode<=0 || opcode>=Bytecode.instructions.length ) continue; // fails at runtime
+			int next = ip + 1 + Bytecode.instructions[opcode].n;
+			if ( next>code.length ) continue;
+			switch ( opcode ) {
+				case Bytecode.IADD :
+				case Bytecode.ISUB :
+				case Bytecode.IMUL :
+				case Bytecode.ILT :
+				case Bytecode.IEQ :
+				case Bytecode.STORE :
+				case Bytecode.GSTORE :
+				case Bytecode.PRINT :
+				case Bytecode.POP :
+				case Bytecode.IALOAD :
+				case Bytecode.GCAS :
+					h--;
+					break;
+				case Bytecode.PUTFIELD :
+				case Bytecode.CALLNATIVE_ARRAY :
+					h -= 2;
+					break;
+				case Bytecode.CALLNATIVE :
+					h = h - code[ip+2] + 1;
+					break;
+				case Bytecode.IASTORE :
+					h -= 3;
+					break;
+				case Bytecode.ICONST :
+				case Bytecode.LOAD :
+				case Bytecode.GLOAD :
+				case Bytecode.FUNCIDX :
+				case Bytecode.NEWSTRUCT :
+					h++;
+					break;
+				case Bytecode.BR :
+					flow(heights, work, code[ip+1], h);
+					continue;
+				case Bytecode.BRT :
+				case Bytecode.BRF :
+					h--;
+					flow(heights, work, code[ip+1], h);
+					break;
+				case Bytecode.LOAD_ICONST_ILT_BRF :
+				case Bytecode.GLOAD_GLOAD_ILT_BRF :
+					flow(heights, work, code[ip+3], h);
+					break;
+				case Bytecode.GINC :
+				case Bytecode.NEWARRAY :
+				case Bytecode.ARRAYLEN :
+				case Bytecode.GETFIELD :
+					break;
+				case Bytecode.CALL :
+					if ( !isFunc(metadata, code[ip+1]) ) continue; // fails at runtime
+					h = h - metadata[code[ip+1]].nargs + 1;
+					break;
+				case Bytecode.LOAD_ICONST_ISUB_CALL :
+					if ( !isFunc(metadata, code[ip+3]) ) continue;
+					max = Math.max(max, h+1); // the arg
+					h = h + 1 - metadata[code[ip+3]].nargs + 1;
+					break;
+				case Bytecode.CALLIDX :
+					h = h - 1 - minArgs + 1;
+					break;
+				case Bytecode.TAILCALL :				// tailCall() checks for callee
+					continue;
+				case Bytecode.RET :
+				case Bytecode.HALT :
+					continue;
+			}
+			max = Math.max(max, h);
+			flow(heights, work, next, h);
+		}
+		for (int ip : visited) heights[ip] = -1;
+		return max;
+	}
+
+	private static boolean isFunc(FuncMetaData[] metadata, int findex) {
+		return metadata!=null && findex>=0 && findex<metadata.length;
+	}
+
+	private static void flow(int[] heights, Deque<Integer> work, int ip, int h) {
+		if ( ip<0 || ip>=heights.length || heights[ip]>=0 ) return;
+		heights[ip] = Math.max(h, 0);
+		work.push(ip);
+	}
+
+	protected static int[] callidxSites(int[] code) {
+		int[] sites = null;
+		int n = 0;
+		int ip = 0;
+		while ( ip<code.length ) {
+			int opcode = code[ip];
+			if ( opcode==Bytecode.CALLIDX ) {
+				if ( sites==null ) {
+					sites = new int[code.length];
+					Arrays.fill(sites, -1);
+				}
+				sites[ip] = n++;
+			}
+			ip++;
+			if ( opcode>0 && opcode<Bytecode.instructions.length ) {
+				ip += Bytecode.instructions[opcode].n;
+			}
+		}
+		return sites;
+	}
+}
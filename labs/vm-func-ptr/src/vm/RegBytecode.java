@@ -0,0 +1,63 @@
+package vm;
+
+/** Instructions for the register machine, RegVM. Operands are
+ *  registers, numbered from 0 within the current function's frame:
+ *  args, then locals, then temporaries.  E.g., "iadd r3, r1, r2"
+ *  computes r3 = r1 + r2.
+ */
+public class RegBytecode {
+	public static class Instruction {
+		String name; // E.g., "iadd", "call"
+		/** One char per operand: r=register, i=integer, a=code address,
+		 *  g=global address, f=function index.
+		 */
+		String operands;
+		int n = 0;
+		public Instruction(String name) { this(name,""); }
+		public Instruction(String name, String operands) {
+			this.name = name;
+			this.operands = operands;
+			this.n = operands.length();
+		}
+	}
+
+	// INSTRUCTION BYTECODES
+	public static final short IADD = 1;     // rd = ra + rb
+	public static final short ISUB = 2;
+	public static final short IMUL = 3;
+	public static final short ILT  = 4;     // rd = ra < rb
+	public static final short IEQ  = 5;     // rd = ra == rb
+	public static final short BR   = 6;     // branch
+	public static final short BRT  = 7;     // branch if rs true
+	public static final short BRF  = 8;     // branch if rs false
+	public static final short ICONST = 9;   // rd = constant
+	public static final short MOVE   = 10;  // rd = rs
+	public static final short GLOAD  = 11;  // rd = globals[a]
+	public static final short GSTORE = 12;  // globals[a] = rs
+	public static final short PRINT  = 13;  // print rs
+	public static final short CALL = 14;    // call f with args in rfirst..; result into rfirst
+	public static final short CALLIDX = 15; // call function index in rf with args in rfirst..
+	public static final short RET  = 16;    // return rs
+	public static final short HALT = 17;
+
+	public static Instruction[] instructions = new Instruction[] {
+		null, // <INVALID>
+		new Instruction("iadd", "rrr"), // index is the opcode
+		new Instruction("isub", "rrr"),
+		new Instruction("imul", "rrr"),
+		new Instruction("ilt", "rrr"),
+		new Instruction("ieq", "rrr"),
+		new Instruction("br", "a"),
+		new Instruction("brt", "ra"),
+		new Instruction("brf", "ra"),
+		new Instruction("iconst", "ri"),
+		new Instruction("move", "rr"),
+		new Instruction("gload", "rg"),
+		new Instruction("gstore", "gr"),
+		new Instruction("print", "r"),
+		new Instruction("call", "fr"),
+		new Instruction("callidx", "rr"),
+		new Instruction("ret", "r"),
+		new Instruction("halt")
+	};
+}
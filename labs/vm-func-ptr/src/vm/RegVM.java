@@ -0,0 +1,250 @@
+package vm;
+
+import java.util.Arrays;
+
+import static vm.RegBytecode.BR;
+import static vm.RegBytecode.BRF;
+import static vm.RegBytecode.BRT;
+import static vm.RegBytecode.CALL;
+import static vm.RegBytecode.CALLIDX;
+import static vm.RegBytecode.GLOAD;
+import static vm.RegBytecode.GSTORE;
+import static vm.RegBytecode.HALT;
+import static vm.RegBytecode.IADD;
+import static vm.RegBytecode.ICONST;
+import static vm.RegBytecode.IEQ;
+import static vm.RegBytecode.ILT;
+import static vm.RegBytecode.IMUL;
+import static vm.RegBytecode.ISUB;
+import static vm.RegBytecode.MOVE;
+import static vm.RegBytecode.PRINT;
+import static vm.RegBytecode.RET;
+
+/** A simple register-based interpreter; see RegBytecode. Use
+ *  StackToRegister to translate stack machine programs.
+ *
+ *  Each call gets a window of registers in regs: a header followed by
+ *  nregs registers (args, locals, temporaries). rp points at register 0
+ *  of the current window:
+ *
+ *  	regs[rp-3]		return address
+ *  	regs[rp-2]		caller's rp
+ *  	regs[rp-1]		index in regs where RET puts the return value
+ *  	regs[rp..]		args, locals, temporaries
+ */
+public class RegVM {
+	public static final int DEFAULT_REGISTER_FILE_SIZE = 10000;
+	public static final int DEFAULT_MAX_REGISTER_FILE_SIZE = 1<<24;
+	public static final int FALSE = 0;
+	public static final int TRUE = 1;
+
+	public static final int FRAME_HEADER_SIZE = 3;
+	public static final int FRAME_RETURNIP = -3;
+	public static final int FRAME_CALLERRP = -2;
+	public static final int FRAME_RESULT = -1;
+
+	// registers
+	int ip;             // instruction pointer register
+	int rp;             // register window pointer
+	int top;            // first free slot in regs
+	int callsp = -1;    // depth of calls
+
+	int startip = 0;	// where execution begins
+	int mainNRegs;		// registers needed by code at startip
+
+	// memory
+	int[] code;         // word-addressable code memory
+	int[] globals;      // global variable space
+	int[] regs;			// register windows, grows upwards
+
+	FuncMetaData[] metadata;
+	int[] nregs;		// registers needed by each function
+
+	/** regs starts small and grows on CALL, doubling but always by a
+	 *  multiple of registerChunkSize words, up to maxRegisterFileSize.
+	 */
+	public int registerChunkSize = DEFAULT_REGISTER_FILE_SIZE;
+	public int maxRegisterFileSize = DEFAULT_MAX_REGISTER_FILE_SIZE;
+
+	public boolean trace = false;
+
+	public RegVM(StackToRegister program, int nglobals) {
+		this(program.code, program.startip, nglobals, program.metadata,
+			 program.nregs, program.mainNRegs);
+	}
+
+	public RegVM(int[] code, int startip, int nglobals, FuncMetaData[] metadata,
+				 int[] nregs, int mainNRegs)
+	{
+		this.code = code;
+		this.startip = startip;
+		globals = new int[nglobals];
+		regs = new int[DEFAULT_REGISTER_FILE_SIZE];
+		this.metadata = metadata;
+		this.nregs = nregs;
+		this.mainNRegs = mainNRegs;
+	}
+
+	public void exec() {
+		ip = startip;
+		rp = FRAME_HEADER_SIZE;
+		top = rp + mainNRegs;
+		if ( top>regs.length ) growRegisters(top, "main");
+		cpu();
+	}
+
+	/** Simulate the fetch-decode execute cycle. We read trace once into
+	 *  a local so the loop doesn't reload the field after every call and
+	 *  print; when it's off the JIT sees the trace branches never taken
+	 *  and compiles them out of the loop.
+	 */
+	protected void cpu() {
+		final boolean traced = trace;
+		int[] code = this.code;
+		int[] regs = this.regs;
+		int opcode = code[ip];
+		int d,a,b;
+		while (opcode!= HALT && ip < code.length) {
+			if ( traced ) System.err.printf("%-34s ", disInstr());
+			ip++; //jump to next instruction or to operand
+			switch (opcode) {
+				case IADD:
+					d = code[ip++]; a = code[ip++]; b = code[ip++];
+					regs[rp+d] = regs[rp+a] + regs[rp+b];
+					break;
+				case ISUB:
+					d = code[ip++]; a = code[ip++]; b = code[ip++];
+					regs[rp+d] = regs[rp+a] - regs[rp+b];
+					break;
+				case IMUL:
+					d = code[ip++]; a = code[ip++]; b = code[ip++];
+					regs[rp+d] = regs[rp+a] * regs[rp+b];
+					break;
+				case ILT :
+					d = code[ip++]; a = code[ip++]; b = code[ip++];
+					regs[rp+d] = (regs[rp+a] < regs[rp+b]) ? TRUE : FALSE;
+					break;
+				case IEQ :
+					d = code[ip++]; a = code[ip++]; b = code[ip++];
+					regs[rp+d] = (regs[rp+a] == regs[rp+b]) ? TRUE : FALSE;
+					break;
+				case BR :
+					ip = code[ip];
+					break;
+				case BRT :
+					a = code[ip++];
+					if ( regs[rp+a]==TRUE ) ip = code[ip];
+					else ip++;
+					break;
+				case BRF :
+					a = code[ip++];
+					if ( regs[rp+a]==FALSE ) ip = code[ip];
+					else ip++;
+					break;
+				case ICONST:
+					d = code[ip++];
+					regs[rp+d] = code[ip++];
+					break;
+				case MOVE :
+					d = code[ip++];
+					regs[rp+d] = regs[rp+code[ip++]];
+					break;
+				case GLOAD :
+					d = code[ip++];
+					regs[rp+d] = globals[code[ip++]];
+					break;
+				case GSTORE :
+					a = code[ip++];
+					globals[a] = regs[rp+code[ip++]];
+					break;
+				case PRINT :
+					System.out.println(regs[rp+code[ip++]]);
+					break;
+				case CALL :
+					a = code[ip++];			// index of target function
+					b = code[ip++];			// first arg register
+					call(a, b);
+					regs = this.regs;		// might have grown
+					break;
+				case CALLIDX :
+					a = regs[rp+code[ip++]];
+					b = code[ip++];
+					call(a, b);
+					regs = this.regs;		// might have grown
+					break;
+				case RET:
+					a = regs[rp+code[ip]];
+					regs[regs[rp+FRAME_RESULT]] = a;
+					ip = regs[rp+FRAME_RETURNIP];
+					top = rp - FRAME_HEADER_SIZE;
+					rp = regs[rp+FRAME_CALLERRP];
+					callsp--;
+					break;
+				default :
+					throw new Error("invalid opcode: "+opcode+" at ip="+(ip-1));
+			}
+			if ( traced ) System.err.println(regsString());
+			opcode = code[ip];
+		}
+		if ( traced ) {
+			System.err.printf("%-34s ", disInstr());
+			System.err.println(regsString());
+		}
+	}
+
+	/** Call function findex with args in registers rfirst.. of the
+	 *  current window; the return value goes into rfirst.
+	 */
+	protected void call(int findex, int rfirst) {
+		FuncMetaData f = metadata[findex];
+		int newrp = top + FRAME_HEADER_SIZE;
+		if ( newrp + nregs[findex] > regs.length ) growRegisters(newrp + nregs[findex], f.name);
+		regs[newrp+FRAME_RETURNIP] = ip;
+		regs[newrp+FRAME_CALLERRP] = rp;
+		regs[newrp+FRAME_RESULT] = rp + rfirst;
+		System.arraycopy(regs, rp+rfirst, regs, newrp, f.nargs);
+		for (int i=newrp+f.nargs; i<newrp+f.nargs+f.nlocals; i++) regs[i] = 0;
+		rp = newrp;
+		top = newrp + nregs[findex];
+		callsp++;
+		ip = f.address;
+	}
+
+	protected void growRegisters(int n, String fname) {
+		if ( n>maxRegisterFileSize ) {
+			throw new Error("call stack overflow calling "+fname+" at depth "+(callsp+1)+
+							"; max is "+maxRegisterFileSize+" registers");
+		}
+		long grown = Math.max((long)n, 2L*regs.length);
+		int size = (int)Math.min((grown/registerChunkSize + 1) * registerChunkSize, maxRegisterFileSize);
+		regs = Arrays.copyOf(regs, size);
+	}
+
+	protected String regsString() {
+		StringBuilder buf = new StringBuilder();
+		buf.append("regs=[");
+		for (int i = rp; i<top; i++) {
+			buf.append(" ");
+			buf.append(regs[i]);
+		}
+		buf.append(" ]");
+		return buf.toString();
+	}
+
+	protected String disInstr() {
+		int opcode = code[ip];
+		RegBytecode.Instruction I = RegBytecode.instructions[opcode];
+		StringBuilder buf = new StringBuilder();
+		buf.append(String.format("%04d:\t%-11s", ip, I.name));
+		for (int i = 0; i<I.n; i++) {
+			if ( i>0 ) buf.append(", ");
+			int operand = code[ip+1+i];
+			switch ( I.operands.charAt(i) ) {
+				case 'r' : buf.append("r").append(operand); break;
+				case 'f' : buf.append(metadata[operand].name); break;
+				default : buf.append(operand); break;
+			}
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,186 @@
+package vm;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Multiplex many guest programs, green threads, onto a few carrier
+ *  threads. Each green thread is a VM with its own registers, stacks,
+ *  and globals. A carrier takes one off the run queue, runs it for a
+ *  quantum of instructions with VM.resume(quantum), and puts it back
+ *  unless it halted. Scheduling is cooperative at instruction
+ *  boundaries; a call into JIT-compiled code runs to completion.
+ *
+ *  	ROUND_ROBIN		FIFO run queue; everyone gets the same quantum
+ *  	PRIORITY		run whoever has the least instructions/priority so
+ *  					far; priority 2 gets twice the instructions of 1
+ *
+ *  Each green thread keeps stats: instructions, slices, time on a
+ *  carrier, the longest wait in the run queue, and wall time from
+ *  spawn to halt. report() prints those with throughput per script and
+ *  Jain's fairness index over throughput/priority (1.0 is perfectly fair).
+ */
+public class Scheduler {
+	public enum Policy { ROUND_ROBIN, PRIORITY }
+
+	public static final long DEFAULT_QUANTUM = 10_000;
+	public static final int GREEN_STACK_SIZE = 64;
+	public static final int GREEN_FRAME_STACK_SIZE = 256;
+
+	public static class GreenThread {
+		public final String name;
+		public final int priority;
+		public final VM vm;
+
+		// stats; only touched by the carrier running us
+		public long slices;
+		public long runNanos;
+		public long maxWaitNanos;
+		public long spawned;
+		public long finished;
+		public Throwable failure;
+		protected long queued;
+
+		public GreenThread(String name, int priority, VM vm) {
+			this.name = name;
+			this.priority = priority;
+			this.vm = vm;
+		}
+
+		/** Instructions per priority level; PRIORITY runs the lowest first */
+		public double vruntime() { return (double)vm.executed / priority; }
+
+		public long wallNanos() { return finished - spawned; }
+
+		/** Instructions per second while on a carrier */
+		public double throughput() { return runNanos>0 ? vm.executed * 1e9 / runNanos : 0; }
+	}
+
+	protected final int ncarriers;
+	protected final long quantum;
+	protected final Policy policy;
+	protected final BlockingQueue<GreenThread> ready;
+	protected final List<GreenThread> threads = new ArrayList<GreenThread>();
+	protected final AtomicInteger running = new AtomicInteger();
+
+	public Scheduler(int ncarriers) { this(ncarriers, DEFAULT_QUANTUM, Policy.ROUND_ROBIN); }
+
+	public Scheduler(int ncarriers, long quantum, Policy policy) {
+		this.ncarriers = ncarriers;
+		this.quantum = quantum;
+		this.policy = policy;
+		if ( policy==Policy.PRIORITY ) {
+			ready = new PriorityBlockingQueue<GreenThread>(64, Comparator.comparingDouble(GreenThread::vruntime));
+		}
+		else {
+			ready = new LinkedBlockingQueue<GreenThread>();
+		}
+	}
+
+	public GreenThread spawn(String name, Program program) { return spawn(name, program, 1); }
+
+	/** Create a green thread running program with fresh globals; it starts on run() */
+	public GreenThread spawn(String name, Program program, int priority) {
+		if ( priority<1 ) throw new Error("priority must be >= 1: "+priority);
+		VM vm = new VM(program, new int[program.nglobals], false, true,
+					   GREEN_STACK_SIZE, GREEN_FRAME_STACK_SIZE);
+		vm.ip = program.startip;
+		GreenThread t = new GreenThread(name, priority, vm);
+		threads.add(t);
+		return t;
+	}
+
+	/** Run all spawned green threads to completion */
+	public void run() throws InterruptedException {
+		long now = System.nanoTime();
+		for (GreenThread t : threads) {
+			t.spawned = now;
+			t.queued = now;
+			t.vm.ensureStack(t.vm.sp + 1 + t.vm.program.mainMaxStack);
+			running.incrementAndGet();
+			ready.add(t);
+		}
+		ExecutorService carriers = Executors.newFixedThreadPool(ncarriers);
+		for (int i = 1; i<=ncarriers; i++) carriers.submit(this::carrier);
+		carriers.shutdown();
+		carriers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	protected void carrier() {
+		try {
+			while ( running.get()>0 ) {
+				GreenThread t = ready.poll(1, TimeUnit.MILLISECONDS);
+				if ( t==null ) continue;
+				long start = System.nanoTime();
+				t.maxWaitNanos = Math.max(t.maxWaitNanos, start - t.queued);
+				boolean halted;
+				try {
+					halted = t.vm.resume(quantum);
+				}
+				catch (Throwable e) {
+					t.failure = e;
+					halted = true;
+				}
+				long end = System.nanoTime();
+				t.slices++;
+				t.runNanos += end - start;
+				if ( halted ) {
+					t.finished = end;
+					running.decrementAndGet();
+				}
+				else {
+					t.queued = end;
+					ready.add(t);
+				}
+			}
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public List<GreenThread> getThreads() { return threads; }
+
+	public void report(PrintStream out) { report(out, 20); }
+
+	/** Print stats for the first n green threads then totals */
+	public void report(PrintStream out, int n) {
+		out.printf("%-12s %4s %12s %7s %9s %9s %9s %12s\n",
+				   "script", "prio", "instr", "slices", "run ms", "wall ms", "maxwait ms", "Minstr/s");
+		long instructions = 0;
+		long first = Long.MAX_VALUE, last = 0;
+		double sum = 0, sumsq = 0;
+		int failed = 0;
+		for (int i = 0; i<threads.size(); i++) {
+			GreenThread t = threads.get(i);
+			if ( i<n ) {
+				out.printf("%-12s %4d %12d %7d %9.2f %9.2f %9.2f %12.1f%s\n",
+						   t.name, t.priority, t.vm.executed, t.slices, t.runNanos/1e6,
+						   t.wallNanos()/1e6, t.maxWaitNanos/1e6, t.throughput()/1e6,
+						   t.failure!=null ? "  failed: "+t.failure : "");
+			}
+			instructions += t.vm.executed;
+			first = Math.min(first, t.spawned);
+			last = Math.max(last, t.finished);
+			if ( t.failure!=null ) failed++;
+			double x = t.wallNanos()>0 ? (double)t.vm.executed / t.wallNanos() / t.priority : 0;
+			sum += x;
+			sumsq += x*x;
+		}
+		if ( threads.size()>n ) out.printf("... %d more\n", threads.size()-n);
+		double seconds = (last - first) / 1e9;
+		double fairness = sumsq>0 ? sum*sum / (threads.size()*sumsq) : 1.0;
+		out.printf("%d scripts (%d failed) on %d carriers, %s, quantum %d: %d instructions in %.1f ms, "+
+				   "%.1f Minstr/s, fairness %.3f\n",
+				   threads.size(), failed, ncarriers, policy, quantum, instructions, seconds*1e3,
+				   instructions/seconds/1e6, fairness);
+	}
+}
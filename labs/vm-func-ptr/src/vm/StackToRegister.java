@@ -0,0 +1,332 @@
+package vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static vm.Bytecode.BR;
+import static vm.Bytecode.BRF;
+import static vm.Bytecode.BRT;
+import static vm.Bytecode.CALL;
+import static vm.Bytecode.CALLIDX;
+import static vm.Bytecode.FUNCIDX;
+import static vm.Bytecode.GLOAD;
+import static vm.Bytecode.GSTORE;
+import static vm.Bytecode.HALT;
+import static vm.Bytecode.IADD;
+import static vm.Bytecode.ICONST;
+import static vm.Bytecode.IEQ;
+import static vm.Bytecode.ILT;
+import static vm.Bytecode.IMUL;
+import static vm.Bytecode.ISUB;
+import static vm.Bytecode.LOAD;
+import static vm.Bytecode.POP;
+import static vm.Bytecode.PRINT;
+import static vm.Bytecode.RET;
+import static vm.Bytecode.STORE;
+
+/** Translate stack machine code (Bytecode) into register machine code
+ *  (RegBytecode) for RegVM.
+ *
+ *  Each function gets registers for its args and locals followed by one
+ *  temporary per operand stack slot: stack slot d lives in register
+ *  nargs+nlocals+d. We track which register holds each stack slot as we
+ *  go so that LOAD n just records that the slot is in register n; no
+ *  instruction is needed.  Slots get copied into their temporaries only
+ *  when we must: at branches and branch targets, before calls, and when
+ *  a STORE would clobber a local still sitting on the stack.
+ *
+ *  We translate each function separately by following control flow from
+ *  its address, as well as the code at startip if that isn't a function.
+ *  Calls must return exactly one value. CALLIDX only knows its
+ *  target at run time so all functions whose index appears in a FUNCIDX
+ *  must take the same number of arguments.
+ */
+public class StackToRegister {
+	public int[] code;
+	public FuncMetaData[] metadata; // same functions, relocated addresses
+	public int[] nregs;             // registers needed per function
+	public int startip;
+	public int mainNRegs;           // registers needed by code at startip
+
+	protected final int[] scode;    // stack code we're translating
+	protected final FuncMetaData[] smetadata;
+	protected int callidxNArgs = -1;
+
+	protected int[] out = new int[100];
+	protected int n = 0; // next address in out
+	protected int lastDest = -1; // where in out the last instruction stored its dest register
+
+	// state for function we're translating
+	protected int base;				// register of stack slot 0
+	protected int[] slots;			// register holding each stack slot
+	protected int sp;				// top of stack in slots
+	protected int[] newAddress;		// stack code address -> register code address
+	protected List<Integer> addrOperands; // branch operands in out to relocate
+
+	public StackToRegister(int[] code, FuncMetaData[] metadata, int startip) {
+		this.scode = code;
+		this.smetadata = metadata!=null ? metadata : new FuncMetaData[0];
+		findCallIdxNArgs();
+		this.metadata = new FuncMetaData[smetadata.length];
+		nregs = new int[smetadata.length];
+		this.startip = -1;
+		for (int i = 0; i<smetadata.length; i++) {
+			FuncMetaData f = smetadata[i];
+			int addr = n;
+			nregs[i] = function(f.address, f.nargs, f.nlocals);
+			this.metadata[i] = new FuncMetaData(f.name, f.nargs, f.nlocals, addr);
+			if ( f.address==startip ) {
+				this.startip = addr;
+				mainNRegs = nregs[i];
+			}
+		}
+		if ( this.startip<0 ) {
+			this.startip = n;
+			mainNRegs = function(startip, 0, 0);
+		}
+		this.code = Arrays.copyOf(out, n);
+	}
+
+	/** Translate the function at address; return number of registers it needs */
+	protected int function(int address, int nargs, int nlocals) {
+		int[] depths = depths(address);
+		int maxdepth = 0;
+		boolean[] isTarget = new boolean[scode.length];
+		for (int ip = 0; ip<scode.length; ip++) {
+			if ( depths[ip]<0 ) continue;
+			maxdepth = Math.max(maxdepth, depths[ip]+1);
+			int op = scode[ip];
+			if ( op==BR || op==BRT || op==BRF ) isTarget[scode[ip+1]] = true;
+		}
+		base = nargs + nlocals;
+		slots = new int[maxdepth+1];
+		sp = -1;
+		newAddress = new int[scode.length];
+		addrOperands = new ArrayList<Integer>();
+		boolean fallsThrough = false;
+		for (int ip = 0; ip<scode.length; ip++) {
+			if ( depths[ip]<0 ) continue;
+			if ( isTarget[ip] ) {
+				// all paths must meet here with stack slots in their temporaries
+				if ( fallsThrough ) canonicalize();
+				sp = depths[ip]-1;
+				for (int d = 0; d<=sp; d++) slots[d] = base+d;
+				lastDest = -1;
+			}
+			newAddress[ip] = n;
+			fallsThrough = instruction(ip);
+		}
+		for (int a : addrOperands) out[a] = newAddress[out[a]];
+		return base + maxdepth;
+	}
+
+	/** Translate one instruction; return false if control never falls
+	 *  through to the next instruction.
+	 */
+	protected boolean instruction(int ip) {
+		int opcode = scode[ip];
+		int operand = ip+1<scode.length ? scode[ip+1] : 0;
+		int a, t;
+		switch ( opcode ) {
+			case IADD : binary(RegBytecode.IADD); break;
+			case ISUB : binary(RegBytecode.ISUB); break;
+			case IMUL : binary(RegBytecode.IMUL); break;
+			case ILT : binary(RegBytecode.ILT); break;
+			case IEQ : binary(RegBytecode.IEQ); break;
+			case ICONST :
+			case FUNCIDX :
+				t = push();
+				emitDef(RegBytecode.ICONST, t, operand);
+				break;
+			case LOAD :
+				slots[++sp] = operand;
+				break;
+			case STORE :
+				a = slots[sp--];
+				boolean stillOnStack = false; // stack still refers to old value?
+				for (int d = 0; d<=sp; d++) {
+					if ( slots[d]==operand ) stillOnStack = true;
+				}
+				if ( !stillOnStack && lastDest>=0 && out[lastDest]==a && a==base+sp+1 ) {
+					out[lastDest] = operand; // compute right into the local
+					lastDest = -1;
+					break;
+				}
+				for (int d = 0; d<=sp; d++) {
+					if ( slots[d]==operand ) {
+						emit(RegBytecode.MOVE, base+d, operand);
+						slots[d] = base+d;
+					}
+				}
+				if ( a!=operand ) emit(RegBytecode.MOVE, operand, a);
+				break;
+			case GLOAD :
+				t = push();
+				emitDef(RegBytecode.GLOAD, t, operand);
+				break;
+			case GSTORE :
+				emit(RegBytecode.GSTORE, operand, slots[sp--]);
+				break;
+			case PRINT :
+				emit(RegBytecode.PRINT, slots[sp--]);
+				break;
+			case POP :
+				sp--;
+				break;
+			case BR :
+				canonicalize();
+				emit(RegBytecode.BR, operand);
+				addrOperands.add(n-1);
+				return false;
+			case BRT :
+			case BRF :
+				a = slots[sp--];
+				canonicalize();
+				emit(opcode==BRT ? RegBytecode.BRT : RegBytecode.BRF, a, operand);
+				addrOperands.add(n-1);
+				break;
+			case CALL :
+				int nargs = smetadata[operand].nargs;
+				canonicalize();
+				sp -= nargs;
+				t = push();
+				emit(RegBytecode.CALL, operand, t);
+				break;
+			case CALLIDX :
+				if ( callidxNArgs<0 ) throw new Error("no function pointers for callidx at "+ip);
+				a = slots[sp--];
+				canonicalize();
+				sp -= callidxNArgs;
+				t = push();
+				emit(RegBytecode.CALLIDX, a, t);
+				break;
+			case RET :
+				if ( sp!=0 ) throw new Error("can't translate ret without exactly one value at "+ip);
+				emit(RegBytecode.RET, slots[sp]);
+				return false;
+			case HALT :
+				emit(RegBytecode.HALT);
+				return false;
+			default :
+				throw new Error("can't translate opcode "+opcode+" at "+ip);
+		}
+		return true;
+	}
+
+	protected void binary(int regOpcode) {
+		int b = slots[sp--];
+		int a = slots[sp--];
+		int t = push();
+		emitDef(regOpcode, t, a, b);
+	}
+
+	/** Push a stack slot held in its temporary; return that register */
+	protected int push() {
+		sp++;
+		slots[sp] = base + sp;
+		return slots[sp];
+	}
+
+	/** Copy every stack slot not already there into its temporary */
+	protected void canonicalize() {
+		for (int d = 0; d<=sp; d++) {
+			if ( slots[d]!=base+d ) {
+				emit(RegBytecode.MOVE, base+d, slots[d]);
+				slots[d] = base+d;
+			}
+		}
+	}
+
+	protected void emit(int... instr) {
+		if ( n+instr.length>out.length ) out = Arrays.copyOf(out, out.length*2);
+		for (int v : instr) out[n++] = v;
+		lastDest = -1;
+	}
+
+	/** Emit an instruction whose first operand is its destination register */
+	protected void emitDef(int... instr) {
+		emit(instr);
+		lastDest = n - instr.length + 1;
+	}
+
+	/** Operand stack depth before each instruction reachable from
+	 *  address or -1 if not reachable.
+	 */
+	protected int[] depths(int address) {
+		int[] depths = new int[scode.length];
+		Arrays.fill(depths, -1);
+		List<Integer> work = new ArrayList<Integer>();
+		depths[address] = 0;
+		work.add(address);
+		while ( !work.isEmpty() ) {
+			int ip = work.remove(work.size()-1);
+			int opcode = scode[ip];
+			if ( opcode<=0 || opcode>=Bytecode.instructions.length ) {
+				throw new Error("can't translate opcode "+opcode+" at "+ip);
+			}
+			int depth = depths[ip];
+			int next = ip + 1 + Bytecode.instructions[opcode].n;
+			int target = -1;
+			switch ( opcode ) {
+				case IADD : case ISUB : case IMUL : case ILT : case IEQ :
+				case STORE : case GSTORE : case PRINT : case POP :
+					depth--;
+					break;
+				case ICONST : case FUNCIDX : case LOAD : case GLOAD :
+					depth++;
+					break;
+				case BR :
+					target = scode[ip+1];
+					next = -1;
+					break;
+				case BRT : case BRF :
+					depth--;
+					target = scode[ip+1];
+					break;
+				case CALL :
+					depth = depth - smetadata[scode[ip+1]].nargs + 1;
+					break;
+				case CALLIDX :
+					depth = depth - 1 - callidxNArgs + 1;
+					break;
+				case RET : case HALT :
+					next = -1;
+					break;
+				default :
+					throw new Error("can't translate opcode "+opcode+" at "+ip);
+			}
+			if ( depth<0 ) throw new Error("stack underflow at "+ip);
+			for (int succ : new int[] {next, target}) {
+				if ( succ<0 || succ>=scode.length ) continue;
+				if ( depths[succ]<0 ) {
+					depths[succ] = depth;
+					work.add(succ);
+				}
+				else if ( depths[succ]!=depth ) {
+					throw new Error("inconsistent stack depth at "+succ);
+				}
+			}
+		}
+		return depths;
+	}
+
+	/** All functions used as pointers must agree on how many args they take */
+	protected void findCallIdxNArgs() {
+		int ip = 0;
+		while ( ip<scode.length ) {
+			int opcode = scode[ip];
+			if ( opcode==FUNCIDX ) {
+				int nargs = smetadata[scode[ip+1]].nargs;
+				if ( callidxNArgs>=0 && callidxNArgs!=nargs ) {
+					throw new Error("function pointers with different numbers of args");
+				}
+				callidxNArgs = nargs;
+			}
+			ip++;
+			if ( opcode>0 && opcode<Bytecode.instructions.length ) {
+				ip += Bytecode.instructions[opcode].n;
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package vm;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+/** Assemble text, disassemble it back, and time both on a big program */
+public class TestAssembler {
+	static String fib =
+		".def fibonacci: args=1 locals=0\n" +
+		"	load 0\n" +
+		"	iconst 2\n" +
+		"	ilt\n" +
+		"	brf cont		; forward reference\n" +
+		"	load 0\n" +
+		"	ret\n" +
+		"cont:\n" +
+		"	load 0\n" +
+		"	iconst 2\n" +
+		"	isub\n" +
+		"	call fibonacci\n" +
+		"	load 0\n" +
+		"	iconst 1\n" +
+		"	isub\n" +
+		"	call fibonacci\n" +
+		"	iadd\n" +
+		"	ret\n" +
+		".def main: args=0 locals=0\n" +
+		"	iconst 10\n" +
+		"	call fibonacci\n" +
+		"	print\n" +
+		"	halt\n";
+
+	static final int NFUNCS = 20_000;
+
+	public static void main(String[] args) throws Exception {
+		Assembler asm = new Assembler(fib);
+		System.out.println("same as Fibonacci.fibonacci? "+Arrays.equals(asm.code, Fibonacci.fibonacci)+
+						   ", starts at "+asm.startip);
+		new VM(asm.program().verify(), false).exec();
+
+		StringWriter text = new StringWriter();
+		new Disassembler(new Program(TestFuncPtr.loop, TestFuncPtr.loop_metadata, 0, 1)).disassemble(text);
+		System.out.print(text);
+		Assembler again = new Assembler(text.toString());
+		System.out.println("round trip same? "+Arrays.equals(again.code, TestFuncPtr.loop));
+
+		String big = generate(NFUNCS);
+		long asmNanos = Long.MAX_VALUE, disNanos = Long.MAX_VALUE;
+		for (int i = 1; i<=5; i++) { // best of 5 once warmed up
+			long start = System.nanoTime();
+			asm = new Assembler(big);
+			asmNanos = Math.min(asmNanos, System.nanoTime() - start);
+			Disassembler dis = new Disassembler(asm.program());
+			start = System.nanoTime();
+			dis.disassemble(Writer.nullWriter());
+			disNanos = Math.min(disNanos, System.nanoTime() - start);
+		}
+		text = new StringWriter(big.length());
+		new Disassembler(asm.program()).disassemble(text);
+		again = new Assembler(text.toString());
+		double mb = big.length() / 1e6;
+		System.out.printf("%.1f MB, %d words: assembled in %d ms (%.0f MB/s), disassembled in %d ms (%.0f MB/s), "+
+						  "round trip same? %s\n", mb, asm.code.length, asmNanos/1_000_000, mb/(asmNanos/1e9),
+						  disNanos/1_000_000, mb/(disNanos/1e9), Arrays.equals(again.code, asm.code));
+		new VM(asm.program().verify(), false).exec();
+	}
+
+	/** A chain of n functions each adding 1 and calling the next */
+	static String generate(int n) {
+		StringBuilder buf = new StringBuilder();
+		buf.append(".def main: args=0 locals=0\n\ticonst 0\n\tcall f0\n\tprint\n\thalt\n");
+		for (int i = 0; i<n; i++) {
+			buf.append(".def f").append(i).append(": args=1 locals=1\n");
+			if ( i==n-1 ) {
+				buf.append("\tload 0\n\tret\n");
+				break;
+			}
+			buf.append("\tload 0\n\ticonst 0\n\tilt\n\tbrt f").append(i).append("_neg\n");
+			buf.append("\tload 0\n\ticonst 1\n\tiadd\n\tcall f").append(i+1).append("\n\tret\n");
+			buf.append("f").append(i).append("_neg:\n\ticonst 0\n\tret\n");
+		}
+		return buf.toString();
+	}
+}
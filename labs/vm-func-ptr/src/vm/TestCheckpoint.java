@@ -0,0 +1,108 @@
+package vm;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static vm.Bytecode.BR;
+import static vm.Bytecode.BRF;
+import static vm.Bytecode.CALL;
+import static vm.Bytecode.GLOAD;
+import static vm.Bytecode.GSTORE;
+import static vm.Bytecode.HALT;
+import static vm.Bytecode.IADD;
+import static vm.Bytecode.ICONST;
+import static vm.Bytecode.ILT;
+import static vm.Bytecode.PRINT;
+
+/** Run part of a long computation, checkpointing as we go, then resume
+ *  it from the checkpoint file in a fresh JVM.
+ */
+public class TestCheckpoint {
+	static final int NGLOBALS = 10000;
+	static final int MAIN_ADDRESS = 26;
+	static final int SLICE = 1_000_000; // instructions between checkpoints
+
+	// fibonacci from Fibonacci.fibonacci at 0 then this main
+	static int[] main = {
+	//.globals 10000; I at 0, TOTAL at 5000
+	// WHILE I<1000:
+	// START (26):
+		GLOAD, 0,					// 26
+		ICONST, 1000,				// 28
+		ILT,						// 30
+		BRF, 51,					// 31
+	//     TOTAL = TOTAL + FIB(15)
+		GLOAD, 5000,				// 33
+		ICONST, 15,					// 35
+		CALL, 0,					// 37
+		IADD,						// 39
+		GSTORE, 5000,				// 40
+	//     I = I + 1
+		GLOAD, 0,					// 42
+		ICONST, 1,					// 44
+		IADD,						// 46
+		GSTORE, 0,					// 47
+		BR, 26,						// 49
+	// DONE (51):
+	// PRINT TOTAL
+		GLOAD, 5000,				// 51
+		PRINT,						// 53
+		HALT						// 54
+	};
+
+	static Program program() {
+		int[] code = Arrays.copyOf(Fibonacci.fibonacci, MAIN_ADDRESS + main.length);
+		System.arraycopy(main, 0, code, MAIN_ADDRESS, main.length);
+		return new Program(code, Fibonacci.fibonacci_metadata, MAIN_ADDRESS, NGLOBALS);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if ( args.length==2 && args[0].equals("resume") ) {
+			VM vm = Checkpoint.restore(program(), Paths.get(args[1]));
+			System.out.println("resumed at ip="+vm.ip+" with i="+vm.globals[0]+", call depth "+(vm.callsp+1));
+			vm.resume(Long.MAX_VALUE); // prints 610000
+			return;
+		}
+
+		Path file = Files.createTempFile("vm", ".ckpt");
+		VM vm = new VM(program(), false);
+		try ( Checkpoint ckpt = new Checkpoint(vm, file) ) {
+			vm.exec(SLICE);
+			ckpt.save();
+			long full = ckpt.bytesWritten;
+			for (int i = 1; i<10; i++) {
+				vm.resume(SLICE);
+				ckpt.save();
+			}
+			System.out.printf("%d checkpoints: first %d bytes, then %d bytes each on average (%d pages of globals total)\n",
+							  ckpt.saves, full, (ckpt.bytesWritten - full)/(ckpt.saves - 1), ckpt.pagesWritten);
+			System.out.println("stopped at ip="+vm.ip+" with i="+vm.globals[0]+", call depth "+(vm.callsp+1));
+
+			// a save torn part way through fails its CRC; we get the one before
+			Path torn = Files.createTempFile("torn", ".ckpt");
+			Files.copy(file, torn, StandardCopyOption.REPLACE_EXISTING);
+			try ( FileChannel channel = FileChannel.open(torn, StandardOpenOption.WRITE) ) {
+				channel.write(ByteBuffer.wrap(new byte[] {-1, -1, -1, -1}), ckpt.stateStart[ckpt.committed]);
+			}
+			VM previous = Checkpoint.restore(program(), torn);
+			System.out.println("torn last save; restored the one before at ip="+previous.ip+" with i="+previous.globals[0]);
+			Files.delete(torn);
+		}
+
+		// pretend we crashed; pick up where we left off in another JVM
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+									   TestCheckpoint.class.getName(), "resume", file.toString())
+			.inheritIO()
+			.start();
+		p.waitFor();
+		Files.delete(file);
+	}
+}
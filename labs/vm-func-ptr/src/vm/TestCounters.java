@@ -0,0 +1,26 @@
+package vm;
+
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Count fib(20) as CSV and the function pointer loop as JSON */
+public class TestCounters {
+	public static void main(String[] args) throws Exception {
+		int[] fib = Fibonacci.fibonacci.clone();
+		fib[Fibonacci.MAIN_ADDRESS+1] = 20;
+		Program p = new Program(fib, Fibonacci.fibonacci_metadata, Fibonacci.MAIN_ADDRESS, 0);
+		VM vm = new VM(p, false);
+		vm.counters = new Counters(p);
+		vm.exec();
+		vm.counters.writeCSV(new OutputStreamWriter(System.out));
+
+		p = new Program(TestFuncPtr.loop, TestFuncPtr.loop_metadata, 0, 1);
+		vm = new VM(p, true);
+		vm.counters = new Counters(p);
+		vm.counters.output = Files.createTempFile("vm", ".json");
+		vm.exec(); // writes counts at HALT
+		System.out.println(new String(Files.readAllBytes(vm.counters.output)));
+		Files.delete(vm.counters.output);
+	}
+}
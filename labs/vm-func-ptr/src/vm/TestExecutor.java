@@ -0,0 +1,70 @@
+package vm;
+
+import java.util.List;
+
+import static vm.Bytecode.BR;
+import static vm.Bytecode.BRF;
+import static vm.Bytecode.CALL;
+import static vm.Bytecode.GLOAD;
+import static vm.Bytecode.GSTORE;
+import static vm.Bytecode.HALT;
+import static vm.Bytecode.IADD;
+import static vm.Bytecode.ICONST;
+import static vm.Bytecode.ILT;
+import static vm.Bytecode.LOAD;
+import static vm.Bytecode.RET;
+import static vm.Bytecode.STORE;
+
+/** Run many invocations of one loaded program across threads */
+public class TestExecutor {
+	static int[] count = {
+	// .GLOBALS 1; TOTAL
+	//.def main: ARGS=0, LOCALS=0	ADDRESS
+			CALL, 0,				// 0
+			HALT,					// 2
+	//.def count: ARGS=0, LOCALS=1; I
+	// I = 0
+			ICONST, 0,				// 3
+			STORE, 0,				// 5
+	// WHILE I<1000:
+	// START (7):
+			LOAD, 0,				// 7
+			ICONST, 1000,			// 9
+			ILT,					// 11
+			BRF, 30,				// 12
+	//     TOTAL = TOTAL + 1		   (fused into atomic GINC)
+			GLOAD, 0,				// 14
+			ICONST, 1,				// 16
+			IADD,					// 18
+			GSTORE, 0,				// 19
+	//     I = I + 1
+			LOAD, 0,				// 21
+			ICONST, 1,				// 23
+			IADD,					// 25
+			STORE, 0,				// 26
+			BR, 7,					// 28
+	// DONE (30):
+	// RETURN I
+			LOAD, 0,				// 30
+			RET						// 32
+	};
+	static FuncMetaData[] count_metadata = {
+		new FuncMetaData("count", 0, 1, 3)
+	};
+
+	public static void main(String[] args) throws Exception {
+		Program fib = new Program(Fibonacci.fibonacci, Fibonacci.fibonacci_metadata,
+								  Fibonacci.MAIN_ADDRESS, 0);
+		VMExecutor executor = new VMExecutor(fib, 4, VMExecutor.GlobalsPolicy.PER_INVOCATION);
+		List<VM> vms = executor.invokeAll(8); // each prints fib(10)
+		System.out.println("ran "+vms.size()+" invocations of fibonacci");
+		executor.shutdown();
+
+		Peephole fused = new Peephole(count, count_metadata, 0);
+		Program counter = new Program(fused.code, fused.metadata, fused.startip, 1);
+		executor = new VMExecutor(counter, 4, VMExecutor.GlobalsPolicy.SHARED);
+		executor.invokeAll(100);
+		System.out.println("shared total = "+executor.getSharedGlobals()[0]+" (expecting 100000)");
+		executor.shutdown();
+	}
+}
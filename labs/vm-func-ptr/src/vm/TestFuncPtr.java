@@ -1,12 +1,19 @@
 package vm;
 
+import static vm.Bytecode.BR;
+import static vm.Bytecode.BRF;
 import static vm.Bytecode.CALL;
 import static vm.Bytecode.CALLIDX;
 import static vm.Bytecode.FUNCIDX;
+import static vm.Bytecode.GLOAD;
+import static vm.Bytecode.GSTORE;
 import static vm.Bytecode.HALT;
+import static vm.Bytecode.IADD;
 import static vm.Bytecode.ICONST;
+import static vm.Bytecode.ILT;
 import static vm.Bytecode.IMUL;
 import static vm.Bytecode.LOAD;
+import static vm.Bytecode.POP;
 import static vm.Bytecode.PRINT;
 import static vm.Bytecode.RET;
 
@@ -59,6 +66,47 @@ public class TestFuncPtr {
 		new FuncMetaData("g", 1, 0, 14)
 	};
 
+	static final int LOOP_N_ADDRESS = 7;	// operand of ICONST N
+	static int[] loop = {
+	//								ADDRESS
+	//.globals 1; i
+	//.def main() { i = 0; while i<10: f(&g,i); i = i + 1 }
+		ICONST, 0,					// 0
+		GSTORE, 0,					// 2
+	// START (4):
+		GLOAD, 0,					// 4
+		ICONST, 10,					// 6
+		ILT,						// 8
+		BRF, 27,					// 9
+		FUNCIDX, 1,					// 11   (push index of g)
+		GLOAD, 0,					// 13
+		CALL, 0,					// 15
+		POP,						// 17
+		GLOAD, 0,					// 18
+		ICONST, 1,					// 20
+		IADD,						// 22
+		GSTORE, 0,					// 23
+		BR, 4,						// 25
+	// DONE (27):
+		HALT,						// 27
+	//.def f(p,x): ARGS=2, LOCALS=0
+	// return (*p)(x)
+		LOAD, 1,                    // 28   (push arg x)
+		LOAD, 0,                    // 30   (push func ptr/index p)
+		CALLIDX,                    // 32
+		RET,                        // 33
+	//.def g(x): ARGS=1, LOCALS=0
+	// return 2*x
+		LOAD, 0,                    // 34
+		ICONST, 2,
+		IMUL,
+		RET
+	};
+	static FuncMetaData[] loop_metadata = {
+		new FuncMetaData("f", 2, 0, 28),
+		new FuncMetaData("g", 1, 0, 34)
+	};
+
 	public static void main(String[] args) {
 //		VM vm = new VM(f, 0, 0, f_metadata);
 //		vm.trace = true;
@@ -67,5 +115,9 @@ public class TestFuncPtr {
 		VM vm = new VM(g, 0, 0, g_metadata);
 		vm.trace = true;
 		vm.exec();
+
+		vm = new VM(loop, 0, 1, loop_metadata);
+		vm.exec();
+		vm.dumpStats();
 	}
 }
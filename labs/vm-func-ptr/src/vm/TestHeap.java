@@ -0,0 +1,150 @@
+package vm;
+
+import static vm.Bytecode.ARRAYLEN;
+import static vm.Bytecode.BR;
+import static vm.Bytecode.BRF;
+import static vm.Bytecode.CALL;
+import static vm.Bytecode.GETFIELD;
+import static vm.Bytecode.GLOAD;
+import static vm.Bytecode.GSTORE;
+import static vm.Bytecode.HALT;
+import static vm.Bytecode.IADD;
+import static vm.Bytecode.IALOAD;
+import static vm.Bytecode.IASTORE;
+import static vm.Bytecode.ICONST;
+import static vm.Bytecode.ILT;
+import static vm.Bytecode.IMUL;
+import static vm.Bytecode.LOAD;
+import static vm.Bytecode.NEWARRAY;
+import static vm.Bytecode.NEWSTRUCT;
+import static vm.Bytecode.PRINT;
+import static vm.Bytecode.PUTFIELD;
+import static vm.Bytecode.RET;
+import static vm.Bytecode.STORE;
+
+/** Arrays, structs, and enough garbage to make the heap collect */
+public class TestHeap {
+	static int[] squares = {
+	// A = NEW INT[10]; I = 0
+			ICONST, 10,				// 0
+			NEWARRAY,				// 2
+			GSTORE, 0,				// 3
+			ICONST, 0,				// 5
+			GSTORE, 1,				// 7
+	// WHILE I<10: A[I] = I*I; I++
+			GLOAD, 1,				// 9
+			ICONST, 10,				// 11
+			ILT,					// 13
+			BRF, 35,				// 14
+			GLOAD, 0,				// 16
+			GLOAD, 1,				// 18
+			GLOAD, 1,				// 20
+			GLOAD, 1,				// 22
+			IMUL,					// 24
+			IASTORE,				// 25
+			GLOAD, 1,				// 26
+			ICONST, 1,				// 28
+			IADD,					// 30
+			GSTORE, 1,				// 31
+			BR, 9,					// 33
+	// I = 0
+			ICONST, 0,				// 35
+			GSTORE, 1,				// 37
+	// WHILE I<A.LENGTH: SUM += A[I]; I++
+			GLOAD, 1,				// 39
+			GLOAD, 0,				// 41
+			ARRAYLEN,				// 43
+			ILT,					// 44
+			BRF, 66,				// 45
+			GLOAD, 2,				// 47
+			GLOAD, 0,				// 49
+			GLOAD, 1,				// 51
+			IALOAD,					// 53
+			IADD,					// 54
+			GSTORE, 2,				// 55
+			GLOAD, 1,				// 57
+			ICONST, 1,				// 59
+			IADD,					// 61
+			GSTORE, 1,				// 62
+			BR, 39,					// 64
+	// PRINT SUM
+			GLOAD, 2,				// 66
+			PRINT,					// 68
+			HALT					// 69
+	};
+
+	static final int LISTS_MAIN_ADDRESS = 43;
+	static int[] lists = {
+	//.def build(n): ARGS=1, LOCALS=3		i, list, node
+	// I = 0
+			ICONST, 0,				// 0
+			STORE, 1,				// 2
+	// WHILE I<N: NODE = NEW {I, LIST}; LIST = NODE; I++
+			LOAD, 1,				// 4
+			LOAD, 0,				// 6
+			ILT,					// 8
+			BRF, 40,				// 9
+			NEWSTRUCT, 2,			// 11
+			STORE, 3,				// 13
+			LOAD, 3,				// 15
+			LOAD, 1,				// 17
+			PUTFIELD, 0,			// 19
+			LOAD, 3,				// 21
+			LOAD, 2,				// 23
+			PUTFIELD, 1,			// 25
+			LOAD, 3,				// 27
+			STORE, 2,				// 29
+			LOAD, 1,				// 31
+			ICONST, 1,				// 33
+			IADD,					// 35
+			STORE, 1,				// 36
+			BR, 4,					// 38
+	// RETURN LIST
+			LOAD, 2,				// 40
+			RET,					// 42
+	//.def main: ARGS=0, LOCALS=0
+	// WHILE J<2000: LAST = BUILD(100); J++
+			GLOAD, 0,				// 43
+			ICONST, 2000,			// 45
+			ILT,					// 47
+			BRF, 65,				// 48
+			ICONST, 100,			// 50
+			CALL, 0,				// 52
+			GSTORE, 1,				// 54
+			GLOAD, 0,				// 56
+			ICONST, 1,				// 58
+			IADD,					// 60
+			GSTORE, 0,				// 61
+			BR, 43,					// 63
+	// PRINT LAST.VALUE; PRINT LAST.NEXT.VALUE
+			GLOAD, 1,				// 65
+			GETFIELD, 0,			// 67
+			PRINT,					// 69
+			GLOAD, 1,				// 70
+			GETFIELD, 1,			// 72
+			GETFIELD, 0,			// 74
+			PRINT,					// 76
+			HALT					// 77
+	};
+	static FuncMetaData[] lists_metadata = {
+		new FuncMetaData("build", 1, 3, 0)
+	};
+
+	public static void main(String[] args) {
+		Program a = new Program(squares, null, 0, 3).verify();
+		run("squares", new VM(a, false));
+		run("squares threaded", new VM(a, true));
+
+		Program l = new Program(lists, lists_metadata, LISTS_MAIN_ADDRESS, 2).verify();
+		run("lists", new VM(l, false));
+		run("lists threaded", new VM(l, true));
+	}
+
+	static void run(String name, VM vm) {
+		System.out.println(name+":");
+		vm.exec();
+		Heap heap = vm.heap;
+		System.out.printf("%d collections in %.2f ms reclaimed %d words; %d of %d words in use\n",
+						  heap.collections, heap.gcNanos/1e6, heap.reclaimed, heap.used(), heap.size());
+	}
+}
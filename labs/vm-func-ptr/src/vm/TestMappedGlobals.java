@@ -0,0 +1,91 @@
+package vm;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Several VM processes counting in one mapped globals file */
+public class TestMappedGlobals {
+	static final int NPROCESSES = 4;
+	static final int N = 200_000;
+	static final int BIG = 64*1024*1024; // globals; 256MB
+
+	static String counters =
+		".globals 3				; ginc count, gcas count, racy count\n" +
+		".def main: args=0 locals=0\n" +
+		"	iconst "+N+"\n" +
+		"	call work\n" +
+		"	pop\n" +
+		"	halt\n" +
+		".def work: args=1 locals=2	; n, i, old\n" +
+		"loop:\n" +
+		"	load 1\n" +
+		"	load 0\n" +
+		"	ilt\n" +
+		"	brf done\n" +
+		"	ginc 0, 1\n" +
+		"retry:					; do old = g1 while !gcas(g1, old, old+1)\n" +
+		"	gload 1\n" +
+		"	store 2\n" +
+		"	load 2\n" +
+		"	load 2\n" +
+		"	iconst 1\n" +
+		"	iadd\n" +
+		"	gcas 1\n" +
+		"	brf retry\n" +
+		"	gload 2				; g2 = g2 + 1, not atomic\n" +
+		"	iconst 1\n" +
+		"	iadd\n" +
+		"	gstore 2\n" +
+		"	load 1\n" +
+		"	iconst 1\n" +
+		"	iadd\n" +
+		"	store 1\n" +
+		"	br loop\n" +
+		"done:\n" +
+		"	iconst 0\n" +
+		"	ret\n";
+
+	public static void main(String[] args) throws Exception {
+		Program program = new Assembler(counters).program().verify();
+		if ( args.length==2 && args[0].equals("worker") ) {
+			try ( MappedGlobals globals = new MappedGlobals(Paths.get(args[1]), program.nglobals) ) {
+				new VM(program, globals).exec();
+			}
+			return;
+		}
+
+		Path file = Files.createTempFile("globals", ".bin");
+		file.toFile().deleteOnExit();
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		List<Process> workers = new ArrayList<Process>();
+		long start = System.nanoTime();
+		for (int i = 1; i<=NPROCESSES; i++) {
+			workers.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+										   TestMappedGlobals.class.getName(), "worker", file.toString())
+							.inheritIO().start());
+		}
+		for (Process p : workers) p.waitFor();
+		long ms = (System.nanoTime() - start) / 1_000_000;
+		try ( MappedGlobals globals = new MappedGlobals(file, program.nglobals) ) {
+			System.out.printf("%d processes x %d in %d ms: ginc %d, gcas %d, gload/gstore %d (expect %d)\n",
+							  NPROCESSES, N, ms, globals.get(0), globals.get(1), globals.get(2), NPROCESSES*N);
+		}
+
+		// a big table costs the Java heap nothing
+		Path bigFile = Files.createTempFile("big", ".bin");
+		bigFile.toFile().deleteOnExit();
+		Runtime rt = Runtime.getRuntime();
+		System.gc();
+		long before = rt.totalMemory() - rt.freeMemory();
+		try ( MappedGlobals big = new MappedGlobals(bigFile, BIG) ) {
+			for (int i = 0; i<BIG; i += 1024) big.set(i, i); // touch every page
+			System.gc();
+			long after = rt.totalMemory() - rt.freeMemory();
+			System.out.printf("mapped %d MB of globals; Java heap grew %d MB; big[%d]=%d\n",
+							  BIG/(1024*1024/4), (after-before)/(1024*1024), BIG-1024, big.get(BIG-1024));
+		}
+	}
+}
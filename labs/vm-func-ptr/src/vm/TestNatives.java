@@ -0,0 +1,103 @@
+package vm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/** Call Java kernels from guest code: Math.max on operand stack args,
+ *  and a sum over a guest array read in place from the heap
+ */
+public class TestNatives {
+	static final int N = 1<<20;
+
+	static String fill =
+		".globals 3				; a, i, sum\n" +
+		".def main: args=0 locals=0\n" +
+		"	iconst 3\n" +
+		"	iconst 7\n" +
+		"	callnative 1, 2			; max(3, 7)\n" +
+		"	print\n" +
+		"	iconst "+N+"\n" +
+		"	newarray\n" +
+		"	gstore 0\n" +
+		"fill:					; a[i] = i; the sum wraps\n" +
+		"	gload 1\n" +
+		"	gload 0\n" +
+		"	arraylen\n" +
+		"	ilt\n" +
+		"	brf filled\n" +
+		"	gload 0\n" +
+		"	gload 1\n" +
+		"	gload 1\n" +
+		"	iastore\n" +
+		"	gload 1\n" +
+		"	iconst 1\n" +
+		"	iadd\n" +
+		"	gstore 1\n" +
+		"	br fill\n" +
+		"filled:\n";
+
+	static String guestSum = fill +
+		"	iconst 0\n" +
+		"	gstore 1\n" +
+		"sum:\n" +
+		"	gload 1\n" +
+		"	gload 0\n" +
+		"	arraylen\n" +
+		"	ilt\n" +
+		"	brf done\n" +
+		"	gload 2\n" +
+		"	gload 0\n" +
+		"	gload 1\n" +
+		"	iaload\n" +
+		"	iadd\n" +
+		"	gstore 2\n" +
+		"	gload 1\n" +
+		"	iconst 1\n" +
+		"	iadd\n" +
+		"	gstore 1\n" +
+		"	br sum\n" +
+		"done:\n" +
+		"	gload 2\n" +
+		"	print\n" +
+		"	halt\n";
+
+	static String nativeSum = fill +
+		"	gload 0\n" +
+		"	iconst 0\n" +
+		"	gload 0\n" +
+		"	arraylen\n" +
+		"	callnative_array 0		; sumArray(a, 0, a.length)\n" +
+		"	print\n" +
+		"	halt\n";
+
+	public static int sumArray(int[] a, int start, int n) {
+		int sum = 0;
+		for (int i = start; i<start+n; i++) sum += a[i];
+		return sum;
+	}
+
+	public static void main(String[] args) throws Throwable {
+		Natives natives = new Natives();
+		natives.register(TestNatives.class, "sumArray");
+		natives.register("max", MethodHandles.publicLookup().findStatic(Math.class, "max",
+						 MethodType.methodType(int.class, int.class, int.class)));
+
+		Program guest = new Assembler(guestSum).program().verify();
+		Program host = new Assembler(nativeSum).program().verify();
+		long guestNanos = Long.MAX_VALUE, hostNanos = Long.MAX_VALUE;
+		for (int i = 1; i<=5; i++) { // best of 5 once warmed up
+			VM vm = new VM(guest, true);
+			vm.natives = natives;
+			long start = System.nanoTime();
+			vm.exec();
+			guestNanos = Math.min(guestNanos, System.nanoTime() - start);
+			vm = new VM(host, true);
+			vm.natives = natives;
+			start = System.nanoTime();
+			vm.exec();
+			hostNanos = Math.min(hostNanos, System.nanoTime() - start);
+		}
+		System.out.printf("sum %d ints: guest loop %d ms, fill + callnative_array %d ms\n",
+						  N, guestNanos/1_000_000, hostNanos/1_000_000);
+	}
+}
@@ -0,0 +1,57 @@
+package vm;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Write programs to object files then load and run them */
+public class TestObjectFile {
+	public static void main(String[] args) throws Exception {
+		Program fib = new Program(Fibonacci.fibonacci, Fibonacci.fibonacci_metadata,
+								  Fibonacci.MAIN_ADDRESS, 0);
+		Program g = new Program(TestFuncPtr.g, TestFuncPtr.g_metadata, 0, 0);
+		for (Program p : new Program[] {fib, g}) {
+			Path path = Files.createTempFile("vm", ".vmo");
+			ObjectFile.write(p, path);
+			System.out.println(path+": "+Files.size(path)+" bytes for "+
+							   p.code.length+" words of code");
+			Program loaded = ObjectFile.load(path);
+			new VM(loaded, false).exec();
+			Files.delete(path);
+		}
+		corrupt(ObjectFile.encode(fib));
+	}
+
+	/** Every truncation, and a negative or huge count in the header, must be a
+	 *  descriptive Error, not an exception or out of memory
+	 */
+	static void corrupt(ByteBuffer good) {
+		int rejected = 0;
+		for (int n = 0; n<good.limit(); n++) {
+			ByteBuffer buf = good.duplicate();
+			buf.limit(n);
+			rejected += rejects(buf);
+		}
+		for (int field = 2; field<7; field++) { // startip, nglobals, nconstants, nfuncs, codeSize
+			int saved = good.getInt(field*4);
+			for (int bad : new int[] {-1, Integer.MAX_VALUE}) {
+				if ( field==3 && bad>0 ) continue; // globals aren't in the file; any count is plausible
+				good.putInt(field*4, bad);
+				rejected += rejects(good.duplicate());
+			}
+			good.putInt(field*4, saved);
+		}
+		System.out.println("rejected "+rejected+" corrupt object files");
+	}
+
+	static int rejects(ByteBuffer buf) {
+		try {
+			ObjectFile.decode(buf);
+		}
+		catch (Error e) {
+			if ( e.getMessage()!=null && e.getMessage().startsWith("corrupt object file") ) return 1;
+			throw e;
+		}
+		throw new Error("decoded corrupt object file "+buf);
+	}
+}
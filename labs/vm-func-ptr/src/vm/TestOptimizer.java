@@ -0,0 +1,100 @@
+package vm;
+
+import static vm.Bytecode.BR;
+import static vm.Bytecode.BRF;
+import static vm.Bytecode.GLOAD;
+import static vm.Bytecode.GSTORE;
+import static vm.Bytecode.HALT;
+import static vm.Bytecode.IADD;
+import static vm.Bytecode.ICONST;
+import static vm.Bytecode.IEQ;
+import static vm.Bytecode.ILT;
+import static vm.Bytecode.IMUL;
+import static vm.Bytecode.ISUB;
+import static vm.Bytecode.POP;
+import static vm.Bytecode.PRINT;
+
+/** A loop as a naive compiler might emit it, before and after Optimizer */
+public class TestOptimizer {
+	static final int N = 10_000_000;
+	static final int N_ADDRESS = 11;	// operand of ICONST N
+	static final int PRINT_ADDRESS = 60;
+	static int[] naive = {
+	// I = 0; SUM = 0
+			ICONST, 0,				// 0
+			GSTORE, 0,				// 2
+			ICONST, 0,				// 4
+			GSTORE, 1,				// 6
+	// WHILE I<N
+			GLOAD, 0,				// 8
+			ICONST, 5,				// 10
+			ILT,					// 12
+			BRF, 58,				// 13
+	// SUM = SUM + I * (2*3 - 5)
+			GLOAD, 1,				// 15
+			GLOAD, 0,				// 17
+			ICONST, 2,				// 19
+			ICONST, 3,				// 21
+			IMUL,					// 23
+			ICONST, 5,				// 24
+			ISUB,					// 26
+			IMUL,					// 27
+			IADD,					// 28
+			GSTORE, 1,				// 29
+	// IF 1==1 THEN I = I + 1 ELSE SUM = 99
+			ICONST, 1,				// 31
+			ICONST, 1,				// 33
+			IEQ,					// 35
+			BRF, 47,				// 36
+			GLOAD, 0,				// 38
+			ICONST, 1,				// 40
+			IADD,					// 42
+			GSTORE, 0,				// 43
+			BR, 53,					// 45
+			ICONST, 99,				// 47
+			GSTORE, 1,				// 49
+			BR, 53,					// 51
+	// 0;	(expression statement)
+			ICONST, 0,				// 53
+			POP,					// 55
+			BR, 8,					// 56
+	// PRINT SUM
+			GLOAD, 1,				// 58
+			PRINT,					// 60
+			HALT					// 61
+	};
+
+	public static void main(String[] args) {
+		Optimizer opt = new Optimizer(naive, null, 0);
+		System.out.printf("%d words => %d words: %d folded, %d branches threaded, %d instructions removed\n",
+						  naive.length, opt.code.length, opt.folded, opt.threaded, opt.removed);
+		VM vm = new VM(new Program(opt.code, null, opt.startip, 2), false);
+		vm.trace = true;
+		vm.exec(); // trace with a small N so we can see the code
+		vm.trace = false;
+
+		int[] big = naive.clone();
+		big[N_ADDRESS] = N;
+		big[PRINT_ADDRESS] = POP;
+		opt = new Optimizer(big, null, 0);
+		run("naive", new VM(new Program(big, null, 0, 2).verify(), false));
+		run("optimized", new VM(new Program(opt.code, null, opt.startip, 2).verify(), false));
+		Peephole fused = new Peephole(opt.code, null, opt.startip);
+		run("optimized+fused", new VM(new Program(fused.code, null, fused.startip, 2).verify(), false));
+
+		Optimizer fib = new Optimizer(Fibonacci.fibonacci, Fibonacci.fibonacci_metadata, Fibonacci.MAIN_ADDRESS);
+		System.out.print("fib: "+Fibonacci.fibonacci.length+" words => "+fib.code.length+" words, prints ");
+		new VM(new Program(fib.code, fib.metadata, fib.startip, 0).verify(), false).exec();
+	}
+
+	static void run(String name, VM vm) {
+		long best = Long.MAX_VALUE;
+		for (int i = 1; i<=5; i++) { // best of 5 once warmed up
+			vm.reset();
+			long start = System.nanoTime();
+			vm.exec();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.println(name+": "+best/1_000_000+" ms, sum="+vm.globals[1]);
+	}
+}
@@ -0,0 +1,44 @@
+package vm;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Profile fib(30) and the function pointer loop; write collapsed stacks
+ *  for flamegraph.pl and compare run time with and without sampling.
+ */
+public class TestProfiler {
+	public static void main(String[] args) throws Exception {
+		int[] fib = Fibonacci.fibonacci.clone();
+		fib[Fibonacci.MAIN_ADDRESS+1] = 30;
+		fib[Fibonacci.MAIN_ADDRESS+4] = Bytecode.POP; // don't print
+		Program fibProgram = new Program(fib, Fibonacci.fibonacci_metadata, Fibonacci.MAIN_ADDRESS, 0);
+
+		int[] loop = TestFuncPtr.loop.clone();
+		loop[TestFuncPtr.LOOP_N_ADDRESS] = 1_000_000;
+		Program loopProgram = new Program(loop, TestFuncPtr.loop_metadata, 0, 1);
+
+		for (Program p : new Program[] {fibProgram, loopProgram}) {
+			long plain = Long.MAX_VALUE, profiled = Long.MAX_VALUE;
+			Profiler profiler = null;
+			for (int i = 1; i<=5; i++) {
+				VM vm = new VM(p, false);
+				long start = System.nanoTime();
+				vm.exec();
+				plain = Math.min(plain, System.nanoTime() - start);
+
+				vm = new VM(p, false);
+				profiler = new Profiler(vm);
+				start = System.nanoTime();
+				profiler.start();
+				vm.exec();
+				profiler.stop();
+				profiled = Math.min(profiled, System.nanoTime() - start);
+			}
+			profiler.dumpFlatProfile(System.out);
+			Path folded = Files.createTempFile("vm", ".folded");
+			profiler.writeCollapsedStacks(folded);
+			System.out.println("collapsed stacks in "+folded);
+			System.out.printf("%.2f ms without profiler, %.2f ms with\n\n", plain/1e6, profiled/1e6);
+		}
+	}
+}
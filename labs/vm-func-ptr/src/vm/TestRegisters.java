@@ -0,0 +1,57 @@
+package vm;
+
+/** Run stack machine programs on the register machine */
+public class TestRegisters {
+	public static void main(String[] args) {
+		StackToRegister fib = new StackToRegister(Fibonacci.fibonacci,
+												  Fibonacci.fibonacci_metadata,
+												  Fibonacci.MAIN_ADDRESS);
+		RegVM vm = new RegVM(fib, 0);
+		vm.exec();
+		System.out.println("fibonacci: "+count(Fibonacci.fibonacci)+
+						   " stack instructions, "+countRegisters(fib.code)+" register instructions");
+
+		StackToRegister g = new StackToRegister(TestFuncPtr.g, TestFuncPtr.g_metadata, 0);
+		vm = new RegVM(g, 0);
+		vm.trace = true;
+		vm.exec();
+
+		StackToRegister sum = new StackToRegister(TestStacks.sum, TestStacks.sum_metadata, TestStacks.MAIN_ADDRESS);
+		vm = new RegVM(sum, 0);
+		vm.exec(); // recursion 100000 deep
+		System.out.println("grew registers to "+vm.regs.length+" words");
+		vm = new RegVM(sum, 0);
+		vm.maxRegisterFileSize = 100000;
+		try {
+			vm.exec();
+		}
+		catch (Error e) {
+			System.out.println(e.getMessage());
+		}
+
+		int[] fib30 = Fibonacci.fibonacci.clone(); // untraced speed; compare with Bench
+		fib30[Fibonacci.MAIN_ADDRESS+1] = 30;
+		fib30[Fibonacci.MAIN_ADDRESS+4] = Bytecode.POP;
+		StackToRegister big = new StackToRegister(fib30, Fibonacci.fibonacci_metadata, Fibonacci.MAIN_ADDRESS);
+		long best = Long.MAX_VALUE;
+		for (int i = 1; i<=10; i++) { // best of 10
+			vm = new RegVM(big, 0);
+			long start = System.nanoTime();
+			vm.exec();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("fib(30) on registers: %.2f ms\n", best/1_000_000.0);
+	}
+
+	static int count(int[] code) {
+		int n = 0;
+		for (int ip = 0; ip<code.length; ip += 1 + Bytecode.instructions[code[ip]].n) n++;
+		return n;
+	}
+
+	static int countRegisters(int[] code) {
+		int n = 0;
+		for (int ip = 0; ip<code.length; ip += 1 + RegBytecode.instructions[code[ip]].n) n++;
+		return n;
+	}
+}
@@ -0,0 +1,34 @@
+package vm;
+
+/** Run thousands of small scripts on a few carrier threads */
+public class TestScheduler {
+	public static void main(String[] args) throws Exception {
+		int[] fib = Fibonacci.fibonacci.clone();
+		fib[Fibonacci.MAIN_ADDRESS+1] = 18;
+		fib[Fibonacci.MAIN_ADDRESS+4] = Bytecode.POP; // don't print
+		Program fibProgram = new Program(fib, Fibonacci.fibonacci_metadata, Fibonacci.MAIN_ADDRESS, 0);
+		int[] loop = Test.loop.clone();
+		loop[1] = 50_000;
+		Program loopProgram = new Program(loop, null, 0, 2);
+
+		long start = System.nanoTime();
+		for (int i = 0; i<2000; i++) {
+			new VM(i%2==0 ? fibProgram : loopProgram, true).exec();
+		}
+		System.out.printf("2000 scripts one after the other: %.1f ms\n\n", (System.nanoTime()-start)/1e6);
+
+		Scheduler s = new Scheduler(4);
+		for (int i = 0; i<2000; i++) {
+			s.spawn((i%2==0 ? "fib" : "loop")+i, i%2==0 ? fibProgram : loopProgram);
+		}
+		s.run();
+		s.report(System.out, 6);
+		System.out.println();
+
+		// same work, priorities 1..3 get 1..3 times the instructions per round
+		s = new Scheduler(2, Scheduler.DEFAULT_QUANTUM, Scheduler.Policy.PRIORITY);
+		for (int i = 0; i<9; i++) s.spawn("loop"+i+"-p"+(i%3+1), loopProgram, i%3+1);
+		s.run();
+		s.report(System.out);
+	}
+}
@@ -0,0 +1,68 @@
+package vm;
+
+import static vm.Bytecode.BRF;
+import static vm.Bytecode.CALL;
+import static vm.Bytecode.HALT;
+import static vm.Bytecode.IADD;
+import static vm.Bytecode.ICONST;
+import static vm.Bytecode.ILT;
+import static vm.Bytecode.ISUB;
+import static vm.Bytecode.LOAD;
+import static vm.Bytecode.PRINT;
+import static vm.Bytecode.RET;
+
+/** Recurse far deeper than the initial stacks hold. They grow on demand
+ *  and running out of room is a VM error not an array index exception.
+ */
+public class TestStacks {
+	static final int MAIN_ADDRESS = 21;
+	static int[] sum = {
+	//.def sum(n): ARGS=1, LOCALS=0	ADDRESS
+	// IF N < 1 RETURN 0
+			LOAD, 0,				// 0
+			ICONST, 1,				// 2
+			ILT,					// 4
+			BRF, 10,				// 5
+			ICONST, 0,				// 7
+			RET,					// 9
+	// RETURN N + SUM(N-1)
+			LOAD, 0,				// 10
+			LOAD, 0,				// 12
+			ICONST, 1,				// 14
+			ISUB,					// 16
+			CALL, 0,				// 17
+			IADD,					// 19
+			RET,					// 20
+	//.def main: ARGS=0, LOCALS=0
+	// PRINT SUM(100000)
+			ICONST, 100000,			// 21
+			CALL, 0,				// 23
+			PRINT,					// 25
+			HALT					// 26
+	};
+	static FuncMetaData[] sum_metadata = {
+		new FuncMetaData("sum", 1, 0, 0)
+	};
+
+	public static void main(String[] args) {
+		Program p = new Program(sum, sum_metadata, MAIN_ADDRESS, 0);
+		System.out.println("max stack: sum="+p.maxStack[0]+", main="+p.mainMaxStack);
+		VM vm = new VM(p, false);
+		vm.exec(); // prints 705082704 (sum overflows int)
+		System.out.println("grew stacks to "+vm.stack.length+" and "+vm.frames.length+" words");
+
+		vm = new VM(p, true);
+		vm.maxFrameStackSize = 100000;
+		try {
+			vm.exec();
+		}
+		catch (Error e) {
+			System.out.println(e.getMessage());
+		}
+
+		vm = new VM(p, false); // compiled sum overflows the JVM stack so JIT falls back
+		vm.enableJIT(10);
+		vm.exec();
+		System.out.println("sum compiled? "+vm.jit.isCompiled(0));
+	}
+}
@@ -0,0 +1,69 @@
+package vm;
+
+import static vm.Bytecode.BRF;
+import static vm.Bytecode.CALL;
+import static vm.Bytecode.HALT;
+import static vm.Bytecode.IADD;
+import static vm.Bytecode.ICONST;
+import static vm.Bytecode.ILT;
+import static vm.Bytecode.ISUB;
+import static vm.Bytecode.LOAD;
+import static vm.Bytecode.POP;
+import static vm.Bytecode.RET;
+
+/** Accumulator-style recursion with and without tail calls */
+public class TestTailCall {
+	static final int N = 1_000_000;
+	static final int MAIN_ADDRESS = 23;
+	static int[] sum = {
+	//.def sum(n, acc): ARGS=2, LOCALS=0	ADDRESS
+	// IF N < 1 RETURN ACC
+			LOAD, 0,				// 0
+			ICONST, 1,				// 2
+			ILT,					// 4
+			BRF, 10,				// 5
+			LOAD, 1,				// 7
+			RET,					// 9
+	// RETURN SUM(N-1, ACC+N)
+			LOAD, 0,				// 10
+			ICONST, 1,				// 12
+			ISUB,					// 14
+			LOAD, 1,				// 15
+			LOAD, 0,				// 17
+			IADD,					// 19
+			CALL, 0,				// 20	<-- tail call
+			RET,					// 22
+	//.def main: ARGS=0, LOCALS=0
+	// SUM(N, 0)
+			ICONST, N,				// 23
+			ICONST, 0,				// 25
+			CALL, 0,				// 27
+			POP,					// 29
+			HALT					// 30
+	};
+	static FuncMetaData[] sum_metadata = {
+		new FuncMetaData("sum", 2, 0, 0)
+	};
+
+	public static void main(String[] args) {
+		Program plain = new Program(sum, sum_metadata, MAIN_ADDRESS, 0);
+		Program tail = new Program(Peephole.tailCalls(sum), sum_metadata, MAIN_ADDRESS, 0).verify();
+		run("call", new VM(plain, false));
+		run("tailcall", new VM(tail, false));
+		run("tailcall threaded", new VM(tail, true));
+		VM vm = new VM(tail, false);
+		vm.enableJIT(JIT.DEFAULT_THRESHOLD);
+		run("tailcall jit", vm);
+	}
+
+	static void run(String name, VM vm) {
+		long best = Long.MAX_VALUE;
+		for (int i = 1; i<=5; i++) { // best of 5 once warmed up
+			vm.reset();
+			long start = System.nanoTime();
+			vm.exec();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.println(name+": "+best/1_000_000+" ms, frame stack grew to "+vm.frames.length+" words");
+	}
+}
@@ -0,0 +1,14 @@
+package vm;
+
+/** Record the tail end of fib(10), fused so calls are superinstructions */
+public class TestTraceRecorder {
+	public static void main(String[] args) {
+		Peephole fused = new Peephole(Fibonacci.fibonacci, Fibonacci.fibonacci_metadata, Fibonacci.MAIN_ADDRESS);
+		Program p = new Program(fused.code, fused.metadata, fused.startip, 0);
+		VM vm = new VM(p, true);
+		vm.recorder = new TraceRecorder(24);
+		vm.exec();
+		System.out.println("recorded "+vm.recorder.count()+" instructions; last "+vm.recorder.size()+":");
+		vm.recorder.dump(System.out, p.code, p.metadata);
+	}
+}
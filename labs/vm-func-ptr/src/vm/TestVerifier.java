@@ -0,0 +1,96 @@
+package vm;
+
+import static vm.Bytecode.BR;
+import static vm.Bytecode.CALL;
+import static vm.Bytecode.CALLIDX;
+import static vm.Bytecode.FUNCIDX;
+import static vm.Bytecode.HALT;
+import static vm.Bytecode.IADD;
+import static vm.Bytecode.ICONST;
+import static vm.Bytecode.LOAD;
+import static vm.Bytecode.POP;
+import static vm.Bytecode.PRINT;
+import static vm.Bytecode.RET;
+
+/** Verify the sample programs, plain and fused, then some broken ones */
+public class TestVerifier {
+	static int[] bad = {
+	//.def main
+		ICONST, 1,			// 0
+		IADD,				// 2	underflow
+		BR, 4,				// 3	middle of an instruction
+		CALL, 7,			// 5	no such function
+		PRINT,				// 7
+		HALT,				// 8
+	//.def f(x): ARGS=1, LOCALS=0
+		LOAD, 3,			// 9	outside frame
+		ICONST, 2,			// 11
+		RET					// 13	leaves 2 values
+	};
+	static FuncMetaData[] bad_metadata = {
+		new FuncMetaData("f", 1, 0, 9)
+	};
+
+	/** Verifies but calls through an index that isn't from a FUNCIDX */
+	static int[] badPtr = {
+	//.def main
+		FUNCIDX, 0,			// 0	pointers take 1 arg
+		POP,				// 2
+		ICONST, 7,			// 3
+		ICONST, 1,			// 5	f1 takes 0 args
+		CALLIDX,			// 7
+		POP,				// 8
+		BR, 3,				// 9
+	//.def f0(x): ARGS=1, LOCALS=0
+		LOAD, 0,			// 11
+		RET,				// 13
+	//.def f1(): ARGS=0, LOCALS=0
+		ICONST, 2,			// 14
+		RET					// 16
+	};
+	static FuncMetaData[] badPtr_metadata = {
+		new FuncMetaData("f0", 1, 0, 11),
+		new FuncMetaData("f1", 0, 0, 14)
+	};
+
+	public static void main(String[] args) {
+		Program[] programs = {
+			new Program(Fibonacci.fibonacci, Fibonacci.fibonacci_metadata, Fibonacci.MAIN_ADDRESS, 0),
+			new Program(Test.factorial, Test.factorial_metadata, Test.MAIN_ADDRESS, 0),
+			new Program(Test.f, Test.f_metadata, 0, 2),
+			new Program(Test.loop, null, 0, 2),
+			new Program(TestFuncPtr.g, TestFuncPtr.g_metadata, 0, 0),
+			new Program(TestFuncPtr.loop, TestFuncPtr.loop_metadata, 0, 1),
+			new Program(TestExecutor.count, TestExecutor.count_metadata, 0, 1),
+			new Program(TestStacks.sum, TestStacks.sum_metadata, TestStacks.MAIN_ADDRESS, 0)
+		};
+		for (Program p : programs) {
+			p.verify();
+			Peephole fused = new Peephole(p.code, p.metadata, p.startip);
+			new Program(fused.code, fused.metadata, fused.startip, p.nglobals).verify();
+			System.out.println("ok: main max stack "+p.mainMaxStack+
+							   ", function max stacks "+java.util.Arrays.toString(p.maxStack));
+		}
+
+		Verifier v = new Verifier(new Program(bad, bad_metadata, 0, 0));
+		System.out.println("bad program verifies? "+v.verify());
+		for (String e : v.errors) System.out.println("\t"+e);
+
+		try {
+			new VM(new Program(bad, bad_metadata, 0, 0), false).exec();
+		}
+		catch (Error e) {
+			System.out.println(e.getMessage());
+		}
+
+		Program p = new Program(badPtr, badPtr_metadata, 0, 0).verify();
+		for (boolean threaded : new boolean[] {false, true}) {
+			try {
+				new VM(p, threaded).exec();
+			}
+			catch (Error e) {
+				System.out.println("verified"+(threaded ? " threaded: " : ": ")+e.getMessage());
+			}
+		}
+	}
+}
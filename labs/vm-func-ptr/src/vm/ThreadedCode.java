@@ -0,0 +1,323 @@
+package vm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import static vm.Bytecode.ARRAYLEN;
+import static vm.Bytecode.BR;
+import static vm.Bytecode.BRF;
+import static vm.Bytecode.BRT;
+import static vm.Bytecode.CALL;
+import static vm.Bytecode.CALLIDX;
+import static vm.Bytecode.CALLNATIVE;
+import static vm.Bytecode.CALLNATIVE_ARRAY;
+import static vm.Bytecode.FUNCIDX;
+import static vm.Bytecode.GCAS;
+import static vm.Bytecode.GETFIELD;
+import static vm.Bytecode.GINC;
+import static vm.Bytecode.GLOAD;
+import static vm.Bytecode.GLOAD_GLOAD_ILT_BRF;
+import static vm.Bytecode.GSTORE;
+import static vm.Bytecode.HALT;
+import static vm.Bytecode.IADD;
+import static vm.Bytecode.IALOAD;
+import static vm.Bytecode.IASTORE;
+import static vm.Bytecode.ICONST;
+import static vm.Bytecode.IEQ;
+import static vm.Bytecode.ILT;
+import static vm.Bytecode.IMUL;
+import static vm.Bytecode.ISUB;
+import static vm.Bytecode.LOAD;
+import static vm.Bytecode.LOAD_ICONST_ILT_BRF;
+import static vm.Bytecode.LOAD_ICONST_ISUB_CALL;
+import static vm.Bytecode.NEWARRAY;
+import static vm.Bytecode.NEWSTRUCT;
+import static vm.Bytecode.POP;
+import static vm.Bytecode.PRINT;
+import static vm.Bytecode.PUTFIELD;
+import static vm.Bytecode.RET;
+import static vm.Bytecode.STORE;
+import static vm.Bytecode.TAILCALL;
+
+/** Pre-decode code memory into one handler per instruction so that the
+ *  interpreter doesn't have to fetch, decode, and switch on every opcode.
+ *  Operands are read once at load time and captured by the handler along
+ *  with the address of the next instruction.  Each handler executes its
+ *  instruction and returns the address of the instruction to execute next
+ *  or -1 to halt. Slots holding operands have no handler.
+ */
+public class ThreadedCode {
+	public interface Handler {
+		int exec(VM vm);
+	}
+
+	/** Atomic access to int[] elements for shared globals */
+	static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+	public static Handler[] decode(int[] code) { return decode(code, false); }
+
+	public static Handler[] decode(int[] code, boolean atomicGlobals) { return decode(code, atomicGlobals, false); }
+
+	/** Decode code memory; if atomicGlobals, access globals with volatile
+	 *  reads and writes and make GINC an atomic add and GCAS an atomic
+	 *  compare-and-set. If mappedGlobals, do the same but to vm.mapped
+	 *  instead of vm.globals.
+	 */
+	public static Handler[] decode(int[] code, boolean atomicGlobals, boolean mappedGlobals) {
+		// extra slot so that running off the end of code memory halts
+		Handler[] handlers = new Handler[code.length+1];
+		int ip = 0;
+		while ( ip<code.length ) {
+			int opcode = code[ip];
+			handlers[ip] = handler(code, ip, atomicGlobals, mappedGlobals);
+			ip++;
+			if ( opcode>0 && opcode<Bytecode.instructions.length ) {
+				ip += Bytecode.instructions[opcode].n;
+			}
+		}
+		handlers[code.length] = vm -> -1;
+		return handlers;
+	}
+
+	protected static Handler handler(int[] code, int ip, boolean atomicGlobals, boolean mappedGlobals) {
+		final int opcode = code[ip];
+		final int at = ip;
+		final int next = ip + 1;
+		final int nextAfterOperand = ip + 2;
+		final int operand = next<code.length ? code[next] : 0;
+		final int operand2 = next+1<code.length ? code[next+1] : 0;
+		final int operand3 = next+2<code.length ? code[next+2] : 0;
+		final int nextAfter2Operands = ip + 3;
+		final int nextAfter3Operands = ip + 4;
+		switch (opcode) {
+			case IADD:
+				return vm -> {
+					int b = vm.stack[vm.sp--];
+					int a = vm.stack[vm.sp--];
+					vm.stack[++vm.sp] = a + b;
+					return next;
+				};
+			case ISUB:
+				return vm -> {
+					int b = vm.stack[vm.sp--];
+					int a = vm.stack[vm.sp--];
+					vm.stack[++vm.sp] = a - b;
+					return next;
+				};
+			case IMUL:
+				return vm -> {
+					int b = vm.stack[vm.sp--];
+					int a = vm.stack[vm.sp--];
+					vm.stack[++vm.sp] = a * b;
+					return next;
+				};
+			case ILT :
+				return vm -> {
+					int b = vm.stack[vm.sp--];
+					int a = vm.stack[vm.sp--];
+					vm.stack[++vm.sp] = (a < b) ? VM.TRUE : VM.FALSE;
+					return next;
+				};
+			case IEQ :
+				return vm -> {
+					int b = vm.stack[vm.sp--];
+					int a = vm.stack[vm.sp--];
+					vm.stack[++vm.sp] = (a == b) ? VM.TRUE : VM.FALSE;
+					return next;
+				};
+			case BR :
+				return vm -> operand;
+			case BRT :
+				return vm -> vm.stack[vm.sp--]==VM.TRUE ? operand : nextAfterOperand;
+			case BRF :
+				return vm -> vm.stack[vm.sp--]==VM.FALSE ? operand : nextAfterOperand;
+			case FUNCIDX :
+			case ICONST:
+				return vm -> {
+					vm.stack[++vm.sp] = operand;
+					return nextAfterOperand;
+				};
+			case LOAD :
+				return vm -> {
+					vm.stack[++vm.sp] = vm.frames[vm.fp+operand];
+					return nextAfterOperand;
+				};
+			case GLOAD :
+				if ( mappedGlobals ) return vm -> {
+					vm.stack[++vm.sp] = vm.mapped.get(operand);
+					return nextAfterOperand;
+				};
+				if ( atomicGlobals ) return vm -> {
+					vm.stack[++vm.sp] = (int)INTS.getVolatile(vm.globals, operand);
+					return nextAfterOperand;
+				};
+				return vm -> {
+					vm.stack[++vm.sp] = vm.globals[operand];
+					return nextAfterOperand;
+				};
+			case STORE :
+				return vm -> {
+					vm.frames[vm.fp+operand] = vm.stack[vm.sp--];
+					return nextAfterOperand;
+				};
+			case GSTORE :
+				if ( mappedGlobals ) return vm -> {
+					vm.mapped.set(operand, vm.stack[vm.sp--]);
+					return nextAfterOperand;
+				};
+				if ( atomicGlobals ) return vm -> {
+					INTS.setVolatile(vm.globals, operand, vm.stack[vm.sp--]);
+					return nextAfterOperand;
+				};
+				return vm -> {
+					vm.globals[operand] = vm.stack[vm.sp--];
+					return nextAfterOperand;
+				};
+			case PRINT :
+				return vm -> {
+					System.out.println(vm.stack[vm.sp--]);
+					return next;
+				};
+			case POP:
+				return vm -> {
+					--vm.sp;
+					return next;
+				};
+			case CALL :
+				return vm -> {
+					vm.ip = nextAfterOperand;
+					vm.call(operand);
+					return vm.ip;
+				};
+			case RET:
+				return vm -> {
+					vm.ret();
+					return vm.ip;
+				};
+			case CALLIDX :
+				return vm -> {
+					int findex = vm.stack[vm.sp--];
+					vm.ip = next;
+					vm.callIndirect(at, findex);
+					return vm.ip;
+				};
+			case HALT :
+				return vm -> -1;
+			case LOAD_ICONST_ILT_BRF :
+				return vm -> vm.frames[vm.fp+operand] < operand2 ? nextAfter3Operands : operand3;
+			case GLOAD_GLOAD_ILT_BRF :
+				if ( mappedGlobals ) return vm ->
+					vm.mapped.get(operand) < vm.mapped.get(operand2) ? nextAfter3Operands : operand3;
+				if ( atomicGlobals ) return vm ->
+					(int)INTS.getVolatile(vm.globals, operand) < (int)INTS.getVolatile(vm.globals, operand2) ?
+						nextAfter3Operands : operand3;
+				return vm -> vm.globals[operand] < vm.globals[operand2] ? nextAfter3Operands : operand3;
+			case GINC :
+				if ( mappedGlobals ) return vm -> {
+					vm.mapped.getAndAdd(operand, operand2);
+					return nextAfter2Operands;
+				};
+				if ( atomicGlobals ) return vm -> {
+					INTS.getAndAdd(vm.globals, operand, operand2);
+					return nextAfter2Operands;
+				};
+				return vm -> {
+					vm.globals[operand] += operand2;
+					return nextAfter2Operands;
+				};
+			case CALLNATIVE :
+				return vm -> {
+					vm.ip = at;		// for errors
+					vm.callNative(operand, operand2);
+					return nextAfter2Operands;
+				};
+			case CALLNATIVE_ARRAY :
+				return vm -> {
+					vm.ip = at;
+					vm.callNativeArray(operand);
+					return nextAfterOperand;
+				};
+			case GCAS :
+				if ( mappedGlobals ) return vm -> {
+					int v = vm.stack[vm.sp--];
+					int expected = vm.stack[vm.sp--];
+					vm.stack[++vm.sp] = vm.mapped.compareAndSet(operand, expected, v) ? VM.TRUE : VM.FALSE;
+					return nextAfterOperand;
+				};
+				if ( atomicGlobals ) return vm -> {
+					int v = vm.stack[vm.sp--];
+					int expected = vm.stack[vm.sp--];
+					vm.stack[++vm.sp] = INTS.compareAndSet(vm.globals, operand, expected, v) ? VM.TRUE : VM.FALSE;
+					return nextAfterOperand;
+				};
+				return vm -> {
+					int v = vm.stack[vm.sp--];
+					int expected = vm.stack[vm.sp--];
+					boolean same = vm.globals[operand]==expected;
+					if ( same ) vm.globals[operand] = v;
+					vm.stack[++vm.sp] = same ? VM.TRUE : VM.FALSE;
+					return nextAfterOperand;
+				};
+			case LOAD_ICONST_ISUB_CALL :
+				return vm -> {
+					vm.stack[++vm.sp] = vm.frames[vm.fp+operand] - operand2;
+					vm.ip = nextAfter3Operands;
+					vm.call(operand3);
+					return vm.ip;
+				};
+			case TAILCALL :
+				return vm -> {
+					vm.tailCall(operand);
+					return vm.ip;
+				};
+			case NEWARRAY :
+				return vm -> {
+					int n = vm.stack[vm.sp--];
+					vm.stack[++vm.sp] = vm.heap().alloc(n, vm);
+					return next;
+				};
+			case IALOAD :
+				return vm -> {
+					int i = vm.stack[vm.sp--];
+					int ref = vm.stack[vm.sp--];
+					vm.stack[++vm.sp] = vm.heap().load(ref, i);
+					return next;
+				};
+			case IASTORE :
+				return vm -> {
+					int v = vm.stack[vm.sp--];
+					int i = vm.stack[vm.sp--];
+					int ref = vm.stack[vm.sp--];
+					vm.heap().store(ref, i, v);
+					return next;
+				};
+			case ARRAYLEN :
+				return vm -> {
+					vm.stack[vm.sp] = vm.heap().length(vm.stack[vm.sp]);
+					return next;
+				};
+			case NEWSTRUCT :
+				return vm -> {
+					vm.stack[++vm.sp] = vm.heap().alloc(operand, vm);
+					return nextAfterOperand;
+				};
+			case GETFIELD :
+				return vm -> {
+					vm.stack[vm.sp] = vm.heap().load(vm.stack[vm.sp], operand);
+					return nextAfterOperand;
+				};
+			case PUTFIELD :
+				return vm -> {
+					int v = vm.stack[vm.sp--];
+					int ref = vm.stack[vm.sp--];
+					vm.heap().store(ref, operand, v);
+					return nextAfterOperand;
+				};
+			default :
+				// might be data; only an error if we try to execute it
+				return vm -> {
+					throw new Error("invalid opcode: "+opcode+" at ip="+at);
+				};
+		}
+	}
+}
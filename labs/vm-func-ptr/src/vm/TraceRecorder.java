@@ -0,0 +1,70 @@
+package vm;
+
+import java.io.PrintStream;
+
+/** A ring buffer holding the last capacity instructions executed by a VM.
+ *  Recording just stores ints; nothing gets formatted until we dump().
+ *  Each entry packs into ENTRY_SIZE ints:
+ *
+ *  	ip<<8 | opcode      (code memory up to MAX_CODE_SIZE words)
+ *  	sp
+ *  	top of stack (0 if stack empty)
+ *
+ *  The state is recorded just before the instruction executes. VM
+ *  refuses to record code too big for ip to fit in 24 bits.
+ */
+public class TraceRecorder {
+	public static final int DEFAULT_CAPACITY = 64*1024;
+	public static final int ENTRY_SIZE = 3;
+	public static final int MAX_CODE_SIZE = 1<<24;
+
+	protected final int[] buffer;
+	protected final int capacity;
+	protected long n = 0; // how many instructions recorded so far
+
+	public TraceRecorder() { this(DEFAULT_CAPACITY); }
+
+	public TraceRecorder(int capacity) {
+		this.capacity = capacity;
+		buffer = new int[capacity*ENTRY_SIZE];
+	}
+
+	public void record(int ip, int opcode, int sp, int tos) {
+		int i = (int)(n % capacity) * ENTRY_SIZE;
+		buffer[i] = ip<<8 | opcode;
+		buffer[i+1] = sp;
+		buffer[i+2] = tos;
+		n++;
+	}
+
+	/** How many entries are in the buffer */
+	public int size() { return (int)Math.min(n, capacity); }
+
+	/** How many instructions were recorded, including those overwritten */
+	public long count() { return n; }
+
+	public int ip(int i) { return buffer[index(i)] >>> 8; }
+	public int opcode(int i) { return buffer[index(i)] & 0xFF; }
+	public int sp(int i) { return buffer[index(i)+1]; }
+	public int tos(int i) { return buffer[index(i)+2]; }
+
+	/** Where entry i, 0 being the oldest in the buffer, starts in buffer */
+	protected int index(int i) {
+		long first = n - size();
+		return (int)((first + i) % capacity) * ENTRY_SIZE;
+	}
+
+	public void clear() { n = 0; }
+
+	/** Decode the buffer, oldest first, disassembling against code */
+	public void dump(PrintStream out, int[] code, FuncMetaData[] metadata) {
+		int size = size();
+		if ( n>size ) out.printf("... %d earlier instructions\n", n - size);
+		for (int i = 0; i<size; i++) {
+			int ip = ip(i);
+			out.printf("%-34s sp=%d", VM.disInstr(code, metadata, ip), sp(i));
+			if ( sp(i)>=0 ) out.printf(" top=%d", tos(i));
+			out.println();
+		}
+	}
+}
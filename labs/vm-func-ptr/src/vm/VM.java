@@ -1,48 +1,102 @@
 package vm;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.util.Arrays;
 
+import static vm.Bytecode.ARRAYLEN;
 import static vm.Bytecode.BR;
 import static vm.Bytecode.BRF;
 import static vm.Bytecode.BRT;
 import static vm.Bytecode.CALL;
 import static vm.Bytecode.CALLIDX;
+import static vm.Bytecode.CALLNATIVE;
+import static vm.Bytecode.CALLNATIVE_ARRAY;
 import static vm.Bytecode.FUNCIDX;
+import static vm.Bytecode.GCAS;
+import static vm.Bytecode.GETFIELD;
+import static vm.Bytecode.GINC;
 import static vm.Bytecode.GLOAD;
+import static vm.Bytecode.GLOAD_GLOAD_ILT_BRF;
 import static vm.Bytecode.GSTORE;
 import static vm.Bytecode.HALT;
 import static vm.Bytecode.IADD;
+import static vm.Bytecode.IALOAD;
+import static vm.Bytecode.IASTORE;
 import static vm.Bytecode.ICONST;
 import static vm.Bytecode.IEQ;
 import static vm.Bytecode.ILT;
 import static vm.Bytecode.IMUL;
 import static vm.Bytecode.ISUB;
 import static vm.Bytecode.LOAD;
+import static vm.Bytecode.LOAD_ICONST_ILT_BRF;
+import static vm.Bytecode.LOAD_ICONST_ISUB_CALL;
+import static vm.Bytecode.NEWARRAY;
+import static vm.Bytecode.NEWSTRUCT;
 import static vm.Bytecode.POP;
 import static vm.Bytecode.PRINT;
+import static vm.Bytecode.PUTFIELD;
 import static vm.Bytecode.RET;
 import static vm.Bytecode.STORE;
+import static vm.Bytecode.TAILCALL;
 
 /** A simple stack-based interpreter */
 public class VM {
 	public static final int DEFAULT_STACK_SIZE = 1000;
-	public static final int DEFAULT_CALL_STACK_SIZE = 1000;
+	public static final int DEFAULT_FRAME_STACK_SIZE = 10000;
+	public static final int DEFAULT_MAX_STACK_SIZE = 1<<24;
+	public static final int DEFAULT_MAX_FRAME_STACK_SIZE = 1<<24;
 	public static final int FALSE = 0;
 	public static final int TRUE = 1;
 
+	// frame header offsets relative to fp
+	public static final int FRAME_HEADER_SIZE = 3;
+	public static final int FRAME_FUNC = -3;
+	public static final int FRAME_RETURNIP = -2;
+	public static final int FRAME_CALLERFP = -1;
+
 	// registers
 	int ip;             // instruction pointer register
 	int sp = -1;  		// stack pointer register
-	int callsp = -1;    // call stack pointer register
+	int callsp = -1;    // call stack pointer register; depth of calls
+	int fp = 0;         // frame pointer register; first arg/local in frames
+	int fsp = 0;        // frame stack pointer register; first free slot
 
 	int startip = 0;	// where execution begins
 
+	Program program;	// code and metadata, possibly shared with other VMs
+
 	// memory
 	int[] code;         // word-addressable code memory but still bytecodes.
 	int[] globals;      // global variable space
+	boolean atomicGlobals; // globals shared with other VMs?
+	MappedGlobals mapped;	// if non-null, globals live here and globals is empty
 	int[] stack;		// Operand stack, grows upwards
-	Context[] callstack;// call stack, grows upwards
+
+	/** Call stack, grows upwards. Rather than allocate a Context per call,
+	 *  each frame is a region of this array: a header of FRAME_HEADER_SIZE
+	 *  words followed by args then locals. fp points just past the header
+	 *  so LOAD i and STORE i access frames[fp+i]:
+	 *
+	 *  	frames[fp-3]			function index
+	 *  	frames[fp-2]			return address
+	 *  	frames[fp-1]			caller's fp
+	 *  	frames[fp..fp+nargs-1]	args
+	 *  	frames[fp+nargs..]		locals
+	 */
+	int[] frames;
+
+	/** Arrays and structs; null until the first allocation */
+	Heap heap;
+
+	/** The operand stack and frames start small and grow on demand,
+	 *  doubling but always by a multiple of stackChunkSize words, up to
+	 *  these limits. We check only on CALL
+	 *  and exec() using the program's max stack depth per function so
+	 *  pushes within a function never check.
+	 */
+	public int stackChunkSize = DEFAULT_STACK_SIZE;
+	public int maxStackSize = DEFAULT_MAX_STACK_SIZE;
+	public int maxFrameStackSize = DEFAULT_MAX_FRAME_STACK_SIZE;
 
 	/** Metadata about the functions allows us to refer to functions by
 	 * 	their index in this table. It makes code generation easier for
@@ -54,28 +108,211 @@ public class VM {
 	 */
 	FuncMetaData[] metadata;
 
+	/** If non-null, code pre-decoded into one handler per instruction
+	 *  and we execute with cpuThreaded() instead of cpu().
+	 */
+	ThreadedCode.Handler[] handlers;
+
+	/** If non-null, hot functions get compiled to JVM bytecode */
+	JIT jit;
+
+	/** Host functions for CALLNATIVE and CALLNATIVE_ARRAY */
+	public Natives natives;
+
+	/** Monomorphic inline caches for CALLIDX, IC_ENTRY_SIZE ints per call
+	 *  site as numbered by Program.callidxSite. Each site remembers the
+	 *  last function it called and that function's arg count, frame size,
+	 *  and address. Null if code has no CALLIDX.
+	 */
+	int[] ic;
+	static final int IC_ENTRY_SIZE = 4;
+	static final int IC_FUNC = 0;		// function index or -1 if site not yet executed
+	static final int IC_NARGS = 1;
+	static final int IC_FRAMESIZE = 2;
+	static final int IC_ADDRESS = 3;
+
+	// stats
+	public long executed = 0;	// instructions run by resume()
+	public long icHits = 0;
+	public long icMisses = 0;
+
+	/** If non-null, record a binary trace of every instruction executed */
+	public TraceRecorder recorder;
+
+	/** If non-null, count opcodes, branches, and calls */
+	public Counters counters;
+
 	public boolean trace = false;
 
 	public VM(int[] code, int startip, int nglobals, FuncMetaData[] metadata) {
-		this.code = code;
-		this.startip = startip;
-		globals = new int[nglobals];
-		stack = new int[DEFAULT_STACK_SIZE];
-		callstack = new Context[DEFAULT_CALL_STACK_SIZE];
-		this.metadata = metadata;
+		this(code, startip, nglobals, metadata, false);
+	}
+
+	public VM(int[] code, int startip, int nglobals, FuncMetaData[] metadata,
+			  boolean threaded)
+	{
+		this(new Program(code, metadata, startip, nglobals), threaded);
 	}
 
+	public VM(Program program, boolean threaded) {
+		this(program, new int[program.nglobals], false, threaded);
+	}
+
+	/** Create a VM with its own registers and stacks executing program.
+	 *  Several VMs can share a globals array if atomicGlobals is true,
+	 *  which forces threaded code with atomic GLOAD, GSTORE, and GINC.
+	 */
+	public VM(Program program, int[] globals, boolean atomicGlobals, boolean threaded) {
+		this(program, globals, atomicGlobals, threaded, DEFAULT_STACK_SIZE, DEFAULT_FRAME_STACK_SIZE);
+	}
+
+	/** Start with small stacks when running thousands of VMs; they grow on demand */
+	public VM(Program program, int[] globals, boolean atomicGlobals, boolean threaded,
+			  int stackSize, int frameStackSize)
+	{
+		this.program = program;
+		this.code = program.code;
+		this.startip = program.startip;
+		this.metadata = program.metadata;
+		this.globals = globals;
+		this.atomicGlobals = atomicGlobals;
+		stack = new int[stackSize];
+		frames = new int[frameStackSize];
+		if ( threaded || atomicGlobals ) handlers = program.handlers(atomicGlobals);
+		if ( program.ncallidxSites>0 ) {
+			ic = new int[program.ncallidxSites * IC_ENTRY_SIZE];
+			for (int e = 0; e<ic.length; e += IC_ENTRY_SIZE) ic[e+IC_FUNC] = -1;
+		}
+	}
+
+	/** Keep globals off the Java heap in a file other VMs, in this or
+	 *  other processes, can map too. Like atomicGlobals this forces
+	 *  threaded code with atomic access to globals.
+	 */
+	public VM(Program program, MappedGlobals mapped) {
+		this(program, new int[0], false, false);
+		if ( mapped.size()<program.nglobals ) {
+			throw new Error("program needs "+program.nglobals+" globals but only "+mapped.size()+" are mapped");
+		}
+		this.mapped = mapped;
+		handlers = program.mappedHandlers();
+	}
+
+	/** Compile functions to JVM bytecode once called threshold times */
+	public void enableJIT(int threshold) {
+		if ( atomicGlobals || mapped!=null ) throw new Error("JIT can't access shared globals atomically");
+		jit = new JIT(code, metadata, threshold);
+	}
+
+	/** Clear the registers so exec() can run the program again; the
+	 *  globals, inline caches, and JIT state survive.
+	 */
+	public void reset() {
+		sp = -1;
+		callsp = -1;
+		fp = 0;
+		fsp = 0;
+	}
+
+	/** Run from startip. A program that hasn't been verified could
+	 *  branch anywhere or underflow the stack so we turn the resulting
+	 *  Java exceptions into VM errors; a verified one runs with no checks.
+	 */
 	public void exec() {
 		ip = startip;
-		cpu();
+		ensureStack(sp + 1 + program.mainMaxStack);
+		if ( program.verified ) {
+			run();
+			return;
+		}
+		try {
+			run();
+		}
+		catch (RuntimeException e) {
+			throw new Error("bad instruction near ip="+ip+" in unverified program: "+e, e);
+		}
+	}
+
+	/** Start at startip but stop after budget instructions; see resume() */
+	public boolean exec(long budget) {
+		ip = startip;
+		ensureStack(sp + 1 + program.mainMaxStack);
+		return resume(budget);
+	}
+
+	/** Continue from ip for at most budget instructions, stopping between
+	 *  instructions so the VM's state is consistent for a checkpoint.
+	 *  Return true if the program halted; ip is then -1. Always uses the
+	 *  threaded code handlers. A call into JIT-compiled code counts as
+	 *  one instruction.
+	 */
+	public boolean resume(long budget) {
+		ThreadedCode.Handler[] handlers = this.handlers;
+		if ( handlers==null ) handlers = program.handlers(atomicGlobals);
+		int ip = this.ip;
+		long n = 0;
+		while ( ip>=0 && n<budget ) {
+			ip = handlers[ip].exec(this);
+			n++;
+		}
+		this.ip = ip;
+		executed += n;
+		return ip<0;
+	}
+
+	protected void run() {
+		if ( trace || recorder!=null || counters!=null ) cpuTraced();
+		else if ( handlers!=null ) cpuThreaded();
+		else cpu();
+	}
+
+	/** Execute pre-decoded handlers; no fetch, decode, or trace per instruction */
+	protected void cpuThreaded() {
+		ThreadedCode.Handler[] handlers = this.handlers;
+		int ip = this.ip;
+		while ( ip>=0 ) {
+			ip = handlers[ip].exec(this);
+		}
+	}
+
+	/** Execute one instruction at a time, tracing as text if trace is set,
+	 *  recording into recorder if non-null, and counting into counters
+	 *  if non-null. This is the slow path and keeps trace checks out of
+	 *  cpu() and cpuThreaded(). It reuses the threaded code handlers to
+	 *  execute each instruction.
+	 */
+	protected void cpuTraced() {
+		ThreadedCode.Handler[] handlers = this.handlers;
+		if ( handlers==null ) handlers = program.handlers(atomicGlobals);
+		if ( recorder!=null && code.length>TraceRecorder.MAX_CODE_SIZE ) {
+			throw new Error("can't record "+code.length+" words of code; max is "+TraceRecorder.MAX_CODE_SIZE);
+		}
+		while ( ip>=0 && ip<code.length ) {
+			if ( recorder!=null ) recorder.record(ip, code[ip], sp, sp>=0 ? stack[sp] : 0);
+			if ( trace ) System.err.printf("%-35s", disInstr());
+			int at = ip;
+			int depth = callsp;
+			ip = handlers[ip].exec(this);
+			if ( counters!=null ) counters.count(at, code[at], ip, callsp-depth, frames, fp);
+			if ( trace ) System.err.println(stackString());
+		}
+		if ( trace ) dumpDataMemory();
+		if ( counters!=null && counters.output!=null ) {
+			try {
+				counters.write(counters.output);
+			}
+			catch (IOException ioe) {
+				throw new Error("can't write counters to "+counters.output, ioe);
+			}
+		}
 	}
 
 	/** Simulate the fetch-decode execute cycle */
 	protected void cpu() {
 		int opcode = code[ip];
 		int a,b,addr,regnum;
-		while (opcode!= HALT && ip < code.length) {
-			if ( trace ) System.err.printf("%-35s", disInstr());
+		final boolean checked = !program.verified; // can't run off the end if verified
+		while (opcode!= HALT && (!checked || ip < code.length)) {
 			ip++; //jump to next instruction or to operand
 			switch (opcode) {
 				case IADD:
@@ -119,7 +356,7 @@ public class VM {
 					break;
 				case LOAD : // load local or arg
 					regnum = code[ip++];
-					stack[++sp] = callstack[callsp].locals[regnum];
+					stack[++sp] = frames[fp+regnum];
 					break;
 				case GLOAD :// load from global memory
 					addr = code[ip++];
@@ -127,7 +364,7 @@ public class VM {
 					break;
 				case STORE :
 					regnum = code[ip++];
-					callstack[callsp].locals[regnum] = stack[sp--];
+					frames[fp+regnum] = stack[sp--];
 					break;
 				case GSTORE :
 					addr = code[ip++];
@@ -142,40 +379,275 @@ public class VM {
 				case CALL :
 					// expects all args on stack
 					int findex = code[ip++];			// index of target function
-					call(metadata[findex]);
+					call(findex);
 					break;
 				case RET:
-					ip = callstack[callsp--].returnip;
+					ret();
 					break;
 				case FUNCIDX :
 					stack[++sp] = code[ip++];
 					break;
 				case CALLIDX :
 					findex = stack[sp--];
-					call(metadata[findex]);
+					callIndirect(ip-1, findex);
+					break;
+				case LOAD_ICONST_ILT_BRF :
+					regnum = code[ip++];
+					b = code[ip++];
+					addr = code[ip++];
+					if ( !(frames[fp+regnum] < b) ) ip = addr;
+					break;
+				case GLOAD_GLOAD_ILT_BRF :
+					a = globals[code[ip++]];
+					b = globals[code[ip++]];
+					addr = code[ip++];
+					if ( !(a < b) ) ip = addr;
+					break;
+				case GINC :
+					addr = code[ip++];
+					globals[addr] += code[ip++];
+					break;
+				case CALLNATIVE :
+					findex = code[ip++];
+					callNative(findex, code[ip++]);
+					break;
+				case CALLNATIVE_ARRAY :
+					callNativeArray(code[ip++]);
+					break;
+				case GCAS :
+					addr = code[ip++];
+					b = stack[sp--];
+					a = stack[sp--];
+					if ( globals[addr]==a ) {
+						globals[addr] = b;
+						stack[++sp] = TRUE;
+					}
+					else {
+						stack[++sp] = FALSE;
+					}
+					break;
+				case LOAD_ICONST_ISUB_CALL :
+					regnum = code[ip++];
+					b = code[ip++];
+					findex = code[ip++];
+					stack[++sp] = frames[fp+regnum] - b;
+					call(findex);
+					break;
+				case TAILCALL :
+					tailCall(code[ip++]);
+					break;
+				case NEWARRAY :
+					a = stack[sp--];
+					stack[++sp] = heap().alloc(a, this);
+					break;
+				case IALOAD :
+					b = stack[sp--];
+					a = stack[sp--];
+					stack[++sp] = heap().load(a, b);
+					break;
+				case IASTORE :
+					int v = stack[sp--];
+					b = stack[sp--];
+					a = stack[sp--];
+					heap().store(a, b, v);
+					break;
+				case ARRAYLEN :
+					stack[sp] = heap().length(stack[sp]);
+					break;
+				case NEWSTRUCT :
+					a = code[ip++];
+					stack[++sp] = heap().alloc(a, this);
+					break;
+				case GETFIELD :
+					stack[sp] = heap().load(stack[sp], code[ip++]);
+					break;
+				case PUTFIELD :
+					v = stack[sp--];
+					a = stack[sp--];
+					heap().store(a, code[ip++], v);
 					break;
 				default :
 					throw new Error("invalid opcode: "+opcode+" at ip="+(ip-1));
 			}
-			if ( trace ) System.err.println(stackString());
 			opcode = code[ip];
 		}
-		if ( trace ) System.err.printf("%-35s", disInstr());
-		if ( trace ) System.err.println(stackString());
-		if ( trace ) dumpDataMemory();
 	}
 
-	public void call(FuncMetaData metadata) {
-		int nargs = metadata.nargs;	// how many args got pushed
-		int nlocals = metadata.nlocals;
-		callstack[++callsp] = new Context(ip, nargs+nlocals);
-		// copy args into new context
-		int firstarg = sp-nargs+1;
-		for (int i=0; i<nargs; i++) {
-			callstack[callsp].locals[i] = stack[firstarg+i];
+	public void call(int findex) {
+		if ( jit!=null && jit.call(this, findex) ) return;
+		FuncMetaData f = metadata[findex];
+		call(findex, f.nargs, f.nargs + f.nlocals, f.address);
+	}
+
+	/** Call through a function pointer from the CALLIDX at address site,
+	 *  using the site's inline cache if it saw findex last time.
+	 */
+	public void callIndirect(int site, int findex) {
+		int[] ic = this.ic;
+		int e = program.callidxSite[site] * IC_ENTRY_SIZE;
+		if ( ic[e+IC_FUNC]!=findex ) checkCallIndirect(site, findex); // hits were checked on their miss
+		if ( jit!=null && jit.call(this, findex) ) return;
+		if ( ic[e+IC_FUNC]==findex ) {
+			icHits++;
+		}
+		else {
+			icMisses++;
+			FuncMetaData f = metadata[findex];
+			ic[e+IC_FUNC] = findex;
+			ic[e+IC_NARGS] = f.nargs;
+			ic[e+IC_FRAMESIZE] = f.nargs + f.nlocals;
+			ic[e+IC_ADDRESS] = f.address;
+		}
+		call(findex, ic[e+IC_NARGS], ic[e+IC_FRAMESIZE], ic[e+IC_ADDRESS]);
+	}
+
+	/** The index on the stack could be anything, even in a verified
+	 *  program; make sure it's a function with the number of args the
+	 *  verifier assumed for CALLIDX.
+	 */
+	protected void checkCallIndirect(int site, int findex) {
+		if ( metadata==null || findex<0 || findex>=metadata.length ) {
+			throw new Error("callidx of bad function index "+findex+" at ip="+site);
 		}
+		if ( program.verified && metadata[findex].nargs!=program.callidxNArgs ) {
+			throw new Error("callidx of "+metadata[findex].name+" with "+metadata[findex].nargs+
+							" args, not "+program.callidxNArgs+", at ip="+site);
+		}
+	}
+
+	protected void call(int findex, int nargs, int framesize, int address) {
+		int newfp = fsp + FRAME_HEADER_SIZE;
+		if ( newfp + framesize > frames.length ) growFrames(newfp + framesize, findex);
+		ensureStack(sp - nargs + 1 + program.maxStack[findex]);
+		frames[newfp+FRAME_FUNC] = findex;
+		frames[newfp+FRAME_RETURNIP] = ip;
+		frames[newfp+FRAME_CALLERFP] = fp;
+		// copy args into new frame and zero the locals
+		System.arraycopy(stack, sp-nargs+1, frames, newfp, nargs);
+		for (int i=newfp+nargs; i<newfp+framesize; i++) frames[i] = 0;
 		sp -= nargs;
-		ip = metadata.address;		// jump to function
+		fp = newfp;
+		fsp = newfp + framesize;
+		callsp++;
+		ip = address;		// jump to function
+	}
+
+	/** Call findex from tail position, reusing the current frame instead
+	 *  of pushing one; the callee returns straight to our caller. The
+	 *  args are on the operand stack just as for call().
+	 */
+	public void tailCall(int findex) {
+		if ( jit!=null && jit.call(this, findex) ) {
+			ret();
+			return;
+		}
+		FuncMetaData f = metadata[findex];
+		int framesize = f.nargs + f.nlocals;
+		if ( fp + framesize > frames.length ) growFrames(fp + framesize, findex);
+		ensureStack(sp - f.nargs + 1 + program.maxStack[findex]);
+		frames[fp+FRAME_FUNC] = findex; // return address and caller's fp stay
+		System.arraycopy(stack, sp-f.nargs+1, frames, fp, f.nargs);
+		for (int i=fp+f.nargs; i<fp+framesize; i++) frames[i] = 0;
+		sp -= f.nargs;
+		fsp = fp + framesize;
+		ip = f.address;
+	}
+
+	public Heap heap() {
+		if ( heap==null ) heap = new Heap();
+		return heap;
+	}
+
+	/** Call host function findex with nargs args from the operand stack */
+	public void callNative(int findex, int nargs) {
+		Natives.NativeFunction f = nativeFunction(findex);
+		if ( f.isArray || f.nargs!=nargs ) {
+			throw new Error("native "+f.name+" called with "+nargs+" args at ip="+ip);
+		}
+		int first = sp - nargs + 1;
+		int result;
+		try {
+			result = f.invoke(stack, first);
+		}
+		catch (Error | RuntimeException e) {
+			throw e;
+		}
+		catch (Throwable t) {
+			throw new Error("native "+f.name+" failed", t);
+		}
+		sp = first;
+		stack[sp] = result;
+	}
+
+	/** Call host array function findex on the heap array slice described
+	 *  by ref, from, n on the operand stack
+	 */
+	public void callNativeArray(int findex) {
+		Natives.NativeFunction f = nativeFunction(findex);
+		if ( !f.isArray ) throw new Error("native "+f.name+" doesn't take an array at ip="+ip);
+		int n = stack[sp--];
+		int from = stack[sp--];
+		int ref = stack[sp];
+		Heap heap = heap();
+		int start = heap.slice(ref, from, n);
+		try {
+			stack[sp] = f.invokeArray(heap.heap, start, n);
+		}
+		catch (Error | RuntimeException e) {
+			throw e;
+		}
+		catch (Throwable t) {
+			throw new Error("native "+f.name+" failed", t);
+		}
+	}
+
+	protected Natives.NativeFunction nativeFunction(int findex) {
+		if ( natives==null ) throw new Error("no natives registered; CALLNATIVE at ip="+ip);
+		return natives.get(findex);
+	}
+
+	/** Make sure the operand stack has at least n words */
+	protected void ensureStack(int n) {
+		if ( n<=stack.length ) return;
+		if ( n>maxStackSize ) {
+			throw new Error("operand stack overflow: need "+n+" words, max is "+maxStackSize+
+							" at ip="+ip);
+		}
+		stack = Arrays.copyOf(stack, Math.min(newSize(stack.length, n), maxStackSize));
+	}
+
+	protected void growFrames(int n, int findex) {
+		if ( n>maxFrameStackSize ) {
+			throw new Error("call stack overflow calling "+metadata[findex].name+
+							" at depth "+(callsp+1)+"; max is "+maxFrameStackSize+" words");
+		}
+		frames = Arrays.copyOf(frames, Math.min(newSize(frames.length, n), maxFrameStackSize));
+	}
+
+	private int newSize(int size, int n) {
+		long grown = Math.max((long)n, 2L*size);
+		return (int)Math.min((grown/stackChunkSize + 1) * stackChunkSize, Integer.MAX_VALUE);
+	}
+
+	public void ret() {
+		ip = frames[fp+FRAME_RETURNIP];
+		fsp = fp - FRAME_HEADER_SIZE;
+		fp = frames[fp+FRAME_CALLERFP];
+		callsp--;
+	}
+
+	/** Build a debugging view of the call stack, outermost call first */
+	public Context[] getCallStack() {
+		Context[] contexts = new Context[callsp+1];
+		int f = fp;
+		for (int i = callsp; i>=0; i--) {
+			FuncMetaData func = metadata[frames[f+FRAME_FUNC]];
+			int[] locals = new int[func.nargs+func.nlocals];
+			System.arraycopy(frames, f, locals, 0, locals.length);
+			contexts[i] = new Context(func, frames[f+FRAME_RETURNIP], locals);
+			f = frames[f+FRAME_CALLERFP];
+		}
+		return contexts;
 	}
 
 	protected String stackString() {
@@ -190,29 +662,37 @@ public class VM {
 		return buf.toString();
 	}
 
-	protected String disInstr() {
+	protected String disInstr() { return disInstr(code, metadata, ip); }
+
+	/** Format the instruction at ip for traces and TraceRecorder.dump() */
+	protected static String disInstr(int[] code, FuncMetaData[] metadata, int ip) {
 		int opcode = code[ip];
 		String opName = Bytecode.instructions[opcode].name;
 		StringBuilder buf = new StringBuilder();
 		buf.append(String.format("%04d:\t%-11s", ip, opName));
+		if ( opName.length()>=11 ) buf.append(' '); // superinstructions have long names
 		int nargs = Bytecode.instructions[opcode].n;
-		if ( opcode==CALL ) {
+		if ( opcode==CALL || opcode==TAILCALL ) {
 			buf.append(metadata[code[ip+1]].name);
 		}
-		else if ( nargs>0 ) {
-			List<String> operands = new ArrayList<String>();
-			for (int i=ip+1; i<=ip+nargs; i++) {
-				operands.add(String.valueOf(code[i]));
-			}
-			for (int i = 0; i<operands.size(); i++) {
-				String s = operands.get(i);
-				if ( i>0 ) buf.append(", ");
-				buf.append(s);
+		else {
+			for (int i = 1; i<=nargs; i++) {
+				if ( i>1 ) buf.append(", ");
+				if ( opcode==LOAD_ICONST_ISUB_CALL && i==nargs ) buf.append(metadata[code[ip+i]].name);
+				else buf.append(code[ip+i]);
 			}
 		}
 		return buf.toString();
 	}
 
+	public void dumpStats() {
+		long calls = icHits + icMisses;
+		if ( calls>0 ) {
+			System.err.printf("callidx inline cache: %d hits, %d misses, %.1f%% hit rate\n",
+							  icHits, icMisses, 100.0 * icHits / calls);
+		}
+	}
+
 	protected void dumpDataMemory() {
 		System.err.println("Data memory:");
 		int addr = 0;
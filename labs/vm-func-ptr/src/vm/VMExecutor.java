@@ -0,0 +1,72 @@
+package vm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Run many independent invocations of one Program on a thread pool.
+ *  Each invocation gets its own VM (registers, stacks, inline caches)
+ *  but shares the program's code, metadata, and threaded code.
+ *
+ *  Globals follow one of two policies:
+ *
+ *  	PER_INVOCATION	each VM gets a fresh, private globals array
+ *  	SHARED			all VMs share one array, accessed atomically;
+ *  					only GINC (see Peephole) is an atomic read-modify-write
+ */
+public class VMExecutor {
+	public enum GlobalsPolicy { PER_INVOCATION, SHARED }
+
+	protected final Program program;
+	protected final GlobalsPolicy policy;
+	protected final boolean threaded;
+	protected final int[] sharedGlobals;
+	protected final ExecutorService pool;
+
+	public VMExecutor(Program program, int nthreads, GlobalsPolicy policy) {
+		this(program, nthreads, policy, false);
+	}
+
+	public VMExecutor(Program program, int nthreads, GlobalsPolicy policy, boolean threaded) {
+		this.program = program;
+		this.policy = policy;
+		this.threaded = threaded;
+		sharedGlobals = policy==GlobalsPolicy.SHARED ? new int[program.nglobals] : null;
+		pool = Executors.newFixedThreadPool(nthreads);
+	}
+
+	/** Run one invocation; the future yields the VM at HALT so callers
+	 *  can look at its globals and stack.
+	 */
+	public Future<VM> submit() {
+		return pool.submit(() -> {
+			VM vm = newVM();
+			vm.exec();
+			return vm;
+		});
+	}
+
+	/** Run n invocations and wait for them all */
+	public List<VM> invokeAll(int n) throws InterruptedException, ExecutionException {
+		List<Future<VM>> futures = new ArrayList<Future<VM>>(n);
+		for (int i = 1; i<=n; i++) futures.add(submit());
+		List<VM> vms = new ArrayList<VM>(n);
+		for (Future<VM> f : futures) vms.add(f.get());
+		return vms;
+	}
+
+	protected VM newVM() {
+		if ( policy==GlobalsPolicy.SHARED ) {
+			return new VM(program, sharedGlobals, true, true);
+		}
+		return new VM(program, new int[program.nglobals], false, threaded);
+	}
+
+	/** The globals shared by all invocations or null if PER_INVOCATION */
+	public int[] getSharedGlobals() { return sharedGlobals; }
+
+	public void shutdown() { pool.shutdown(); }
+}
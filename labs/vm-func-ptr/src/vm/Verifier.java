@@ -0,0 +1,340 @@
+package vm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/** Check a program before running it, much like the JVM's verifier. We
+ *  build the control-flow graph from each function's address using
+ *  Bytecode.instructions[op].n to find the next instruction and branch
+ *  operands to find the others, then check that:
+ *
+ *  	every opcode is valid and its operands fit in code memory
+ *  	branch targets and function addresses start an instruction
+ *  	execution can't fall off the end of code memory
+ *  	the stack never underflows and has the same height along every
+ *  	path into an instruction
+ *  	RET leaves exactly the return value on the stack
+ *  	LOAD/STORE stay within the frame, GLOAD/GSTORE within globals,
+ *  	and CALL/FUNCIDX name a function in the metadata
+ *  	every function a FUNCIDX points at takes the same number of args
+ *  	so each CALLIDX has a known stack effect
+ *
+ *  We don't track where the index a CALLIDX pops came from; it might
+ *  be any int. VM.callIndirect() checks that it names a function taking
+ *  that many args so a bad index can't unbalance the stack.
+ *
+ *  Along the way we compute each function's max stack depth. The VM
+ *  runs verified programs without its defensive checks.
+ */
+public class Verifier {
+	protected final Program program;
+	protected final int[] code;
+	protected final FuncMetaData[] metadata;
+
+	/** isInstr[a] is true if an instruction starts at address a */
+	protected boolean[] isInstr;
+
+	/** Args taken by every function a CALLIDX might call; -1 if no FUNCIDX */
+	protected int callidxNArgs = -1;
+
+	public final List<String> errors = new ArrayList<String>();
+
+	/** Max stack depth per function, valid after verify() succeeds */
+	public int[] maxStack;
+	public int mainMaxStack;
+
+	/** Stack height at each instruction as we walk a function; -1 if not reached */
+	protected int[] heights;
+
+	public Verifier(Program program) {
+		this.program = program;
+		this.code = program.code;
+		this.metadata = program.metadata!=null ? program.metadata : new FuncMetaData[0];
+	}
+
+	/** Return true if program is ok; otherwise see errors */
+	public boolean verify() {
+		errors.clear();
+		findInstructions();
+		checkMetaData();
+		findCallIdxNArgs();
+		if ( !errors.isEmpty() ) return false; // can't trust the CFG
+		maxStack = new int[metadata.length];
+		for (int i = 0; i<metadata.length; i++) {
+			FuncMetaData f = metadata[i];
+			maxStack[i] = function(f.address, f.nargs+f.nlocals, true);
+		}
+		int mainFrameSize = 0;
+		for (FuncMetaData f : metadata) {
+			if ( f.address==program.startip ) mainFrameSize = f.nargs+f.nlocals;
+		}
+		mainMaxStack = function(program.startip, mainFrameSize, false);
+		return errors.isEmpty();
+	}
+
+	/** Sweep code memory once marking where instructions start */
+	protected void findInstructions() {
+		isInstr = new boolean[code.length];
+		int ip = 0;
+		while ( ip<code.length ) {
+			int opcode = code[ip];
+			if ( opcode<=0 || opcode>=Bytecode.instructions.length ) {
+				error(ip, "invalid opcode "+opcode);
+				ip++;
+				continue;
+			}
+			isInstr[ip] = true;
+			int next = ip + 1 + Bytecode.instructions[opcode].n;
+			if ( next>code.length ) error(ip, "operands past end of code");
+			ip = next;
+		}
+	}
+
+	protected void checkMetaData() {
+		for (FuncMetaData f : metadata) {
+			if ( f.nargs<0 || f.nlocals<0 ) {
+				errors.add(f.name+": negative args or locals");
+			}
+			if ( f.address<0 || f.address>=code.length || !isInstr[f.address] ) {
+				errors.add(f.name+": address "+f.address+" is not an instruction");
+			}
+		}
+		if ( program.startip<0 || program.startip>=code.length || !isInstr[program.startip] ) {
+			errors.add("start address "+program.startip+" is not an instruction");
+		}
+	}
+
+	protected void findCallIdxNArgs() {
+		for (int ip = 0; ip<code.length; ip++) {
+			if ( isInstr[ip] && code[ip]==Bytecode.FUNCIDX && isFunc(ip, code[ip+1]) ) {
+				int nargs = metadata[code[ip+1]].nargs;
+				if ( callidxNArgs>=0 && callidxNArgs!=nargs ) {
+					error(ip, "function pointers with different numbers of args");
+				}
+				callidxNArgs = nargs;
+			}
+		}
+	}
+
+	/** Walk every path from address tracking stack height; return max height */
+	protected int function(int address, int framesize, boolean isFunction) {
+		if ( heights==null ) {		// shared by all functions; see below
+			heights = new int[code.length];
+			Arrays.fill(heights, -1);
+		}
+		Deque<Integer> work = new ArrayDeque<Integer>();
+		Deque<Integer> visited = new ArrayDeque<Integer>();
+		heights[address] = 0;
+		work.push(address);
+		int max = 0;
+		while ( !work.isEmpty() ) {
+			int ip = work.pop();
+			visited.push(ip);
+			int h = heights[ip];
+			int opcode = code[ip];
+			int need = 0;			// stack values the instruction consumes
+			int after = h;			// height after executing it
+			int target = -1;		// branch target if branches
+			boolean branches = false;
+			boolean fallsThrough = true;
+			switch ( opcode ) {
+				case Bytecode.IADD :
+				case Bytecode.ISUB :
+				case Bytecode.IMUL :
+				case Bytecode.ILT :
+				case Bytecode.IEQ :
+					need = 2;
+					after = h - 1;
+					break;
+				case Bytecode.BR :
+					target = code[ip+1];
+					branches = true;
+					fallsThrough = false;
+					break;
+				case Bytecode.BRT :
+				case Bytecode.BRF :
+					need = 1;
+					after = h - 1;
+					target = code[ip+1];
+					branches = true;
+					break;
+				case Bytecode.ICONST :
+					after = h + 1;
+					break;
+				case Bytecode.LOAD :
+					if ( !isLocal(ip, code[ip+1], framesize) ) continue;
+					after = h + 1;
+					break;
+				case Bytecode.STORE :
+					if ( !isLocal(ip, code[ip+1], framesize) ) continue;
+					need = 1;
+					after = h - 1;
+					break;
+				case Bytecode.GLOAD :
+					if ( !isGlobal(ip, code[ip+1]) ) continue;
+					after = h + 1;
+					break;
+				case Bytecode.GSTORE :
+					if ( !isGlobal(ip, code[ip+1]) ) continue;
+					need = 1;
+					after = h - 1;
+					break;
+				case Bytecode.CALLNATIVE :
+					if ( code[ip+2]<0 ) {
+						error(ip, "negative native arg count "+code[ip+2]);
+						continue;
+					}
+					need = code[ip+2];
+					after = h - need + 1;
+					break;
+				case Bytecode.CALLNATIVE_ARRAY :
+					need = 3;
+					after = h - 2;
+					break;
+				case Bytecode.GCAS :
+					if ( !isGlobal(ip, code[ip+1]) ) continue;
+					need = 2;
+					after = h - 1;
+					break;
+				case Bytecode.PRINT :
+				case Bytecode.POP :
+					need = 1;
+					after = h - 1;
+					break;
+				case Bytecode.CALL :
+					if ( !isFunc(ip, code[ip+1]) ) continue;
+					need = metadata[code[ip+1]].nargs;
+					after = h - need + 1;
+					break;
+				case Bytecode.RET :
+					if ( !isFunction ) error(ip, "ret outside of a function");
+					else if ( h!=1 ) error(ip, "ret with stack height "+h+" not 1");
+					continue;
+				case Bytecode.FUNCIDX :
+					if ( !isFunc(ip, code[ip+1]) ) continue;
+					after = h + 1;
+					break;
+				case Bytecode.CALLIDX :
+					if ( callidxNArgs<0 ) {
+						error(ip, "callidx but no function pointers");
+						continue;
+					}
+					need = 1 + callidxNArgs;
+					after = h - need + 1;
+					break;
+				case Bytecode.TAILCALL :
+					if ( !isFunc(ip, code[ip+1]) ) continue;
+					if ( !isFunction ) error(ip, "tailcall outside of a function");
+					else if ( h!=metadata[code[ip+1]].nargs ) {
+						error(ip, "tailcall with stack height "+h+" not "+metadata[code[ip+1]].nargs);
+					}
+					continue;
+				case Bytecode.HALT :
+					continue;
+				case Bytecode.LOAD_ICONST_ILT_BRF :
+					if ( !isLocal(ip, code[ip+1], framesize) ) continue;
+					target = code[ip+3];
+					branches = true;
+					break;
+				case Bytecode.GLOAD_GLOAD_ILT_BRF :
+					if ( !isGlobal(ip, code[ip+1]) || !isGlobal(ip, code[ip+2]) ) continue;
+					target = code[ip+3];
+					branches = true;
+					break;
+				case Bytecode.GINC :
+					if ( !isGlobal(ip, code[ip+1]) ) continue;
+					break;
+				case Bytecode.LOAD_ICONST_ISUB_CALL :
+					if ( !isLocal(ip, code[ip+1], framesize) || !isFunc(ip, code[ip+3]) ) continue;
+					max = Math.max(max, h+1); // the arg
+					need = Math.max(metadata[code[ip+3]].nargs - 1, 0);
+					after = h + 2 - metadata[code[ip+3]].nargs;
+					break;
+				case Bytecode.NEWARRAY :
+				case Bytecode.ARRAYLEN :
+					need = 1;
+					break;
+				case Bytecode.IALOAD :
+					need = 2;
+					after = h - 1;
+					break;
+				case Bytecode.IASTORE :
+					need = 3;
+					after = h - 3;
+					break;
+				case Bytecode.NEWSTRUCT :
+					if ( !isField(ip, code[ip+1]) ) continue;
+					after = h + 1;
+					break;
+				case Bytecode.GETFIELD :
+					if ( !isField(ip, code[ip+1]) ) continue;
+					need = 1;
+					break;
+				case Bytecode.PUTFIELD :
+					if ( !isField(ip, code[ip+1]) ) continue;
+					need = 2;
+					after = h - 2;
+					break;
+			}
+			if ( h<need ) {
+				error(ip, Bytecode.instructions[opcode].name+" needs "+need+
+						  " stack values but has "+h);
+				after = Math.max(after, 0); // keep going to find more errors
+			}
+			max = Math.max(max, after);
+			if ( branches ) flow(ip, target, after, heights, work);
+			if ( fallsThrough ) {
+				int next = ip + 1 + Bytecode.instructions[opcode].n;
+				if ( next>=code.length ) error(ip, "falls off the end of code");
+				else flow(ip, next, after, heights, work);
+			}
+		}
+		for (int ip : visited) heights[ip] = -1; // cheaper than clearing all of code
+		return max;
+	}
+
+	protected void flow(int from, int to, int h, int[] heights, Deque<Integer> work) {
+		if ( to<0 || to>=code.length || !isInstr[to] ) {
+			error(from, "branch to "+to+" is not an instruction");
+		}
+		else if ( heights[to]<0 ) {
+			heights[to] = h;
+			work.push(to);
+		}
+		else if ( heights[to]!=h ) {
+			error(from, "stack height "+h+" at "+to+" but "+heights[to]+" along another path");
+		}
+	}
+
+	protected boolean isLocal(int ip, int i, int framesize) {
+		if ( i>=0 && i<framesize ) return true;
+		error(ip, "local "+i+" outside frame of size "+framesize);
+		return false;
+	}
+
+	protected boolean isGlobal(int ip, int i) {
+		if ( i>=0 && i<program.nglobals ) return true;
+		error(ip, "global "+i+" out of range; "+program.nglobals+" globals");
+		return false;
+	}
+
+	/** Field index or struct size; whether it fits the struct is a runtime check */
+	protected boolean isField(int ip, int i) {
+		if ( i>=0 ) return true;
+		error(ip, "negative field index or struct size "+i);
+		return false;
+	}
+
+	protected boolean isFunc(int ip, int i) {
+		if ( i>=0 && i<metadata.length ) return true;
+		error(ip, "no function "+i);
+		return false;
+	}
+
+	protected void error(int ip, String msg) {
+		errors.add(String.format("%04d: %s", ip, msg));
+	}
+}